@@ -0,0 +1,65 @@
+/*
+ * Factory+ RDF store
+ * Async response helpers
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.api;
+
+import java.util.concurrent.TimeUnit;
+
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.Response;
+
+import io.reactivex.rxjava3.core.*;
+
+import uk.co.amrc.factoryplus.metadb.db.RdfErr;
+
+/* Errors are passed to resume(Throwable) so they go through the
+ * ErrorMapper as they would from a synchronous resource method.
+ * Suspended reads time out with a 503 so a result which never arrives
+ * cannot hold the connection open forever.
+ *
+ * Writes do not time out. A write which has been queued may still
+ * commit after any timeout, and a client retrying a 503 would repeat
+ * it; for a POST which creates an object that makes a duplicate. The
+ * write queue always completes its requests, so the client gets the
+ * real outcome in the end. */
+final class Async
+{
+    private static final long TIMEOUT = 30;
+
+    private Async () { }
+
+    private static void suspend (AsyncResponse res)
+    {
+        res.setTimeoutHandler(r ->
+            r.resume(new RdfErr.Busy("Request timed out")));
+        res.setTimeout(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    static <T> void resume (AsyncResponse res, Single<T> result)
+    {
+        suspend(res);
+        write(res, result);
+    }
+
+    static void resume (AsyncResponse res, Completable result)
+    {
+        suspend(res);
+        write(res, result);
+    }
+
+    /* As resume, without the timeout */
+    static <T> void write (AsyncResponse res, Single<T> result)
+    {
+        result.subscribe(v -> res.resume(v), e -> res.resume(e));
+    }
+
+    static void write (AsyncResponse res, Completable result)
+    {
+        result.subscribe(
+            () -> res.resume(Response.noContent().build()),
+            e -> res.resume(e));
+    }
+}
@@ -8,18 +8,21 @@ package uk.co.amrc.factoryplus.metadb.api;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Map;
-import java.util.function.BiFunction;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import jakarta.inject.*;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.container.*;
 import jakarta.ws.rs.core.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.jena.atlas.RuntimeIOException;
 import org.apache.jena.graph.*;
 import org.apache.jena.rdf.model.*;
 import org.apache.jena.query.*;
@@ -27,25 +30,43 @@ import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RDFLanguages;
 import org.apache.jena.riot.RIOT;
+import org.apache.jena.riot.RiotException;
 import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.modify.request.UpdateBinaryOp;
+import org.apache.jena.sparql.modify.request.UpdateDropClear;
 import org.apache.jena.sparql.resultset.SPARQLResult;
 import org.apache.jena.update.*;
 
+import io.reactivex.rxjava3.core.Single;
+
 import io.vavr.control.*;
 
+import uk.co.amrc.factoryplus.client.FPServiceClient;
 import uk.co.amrc.factoryplus.client.FPUuid;
 import uk.co.amrc.factoryplus.metadb.db.*;
+import uk.co.amrc.factoryplus.providers.AuthFilter;
+import uk.co.amrc.factoryplus.providers.AsyncAuth;
 import uk.co.amrc.factoryplus.service.SvcErr;
 
 @Path("v2")
 public class Sparql {
     @Inject private RdfStore store;
+    @Inject private FPServiceClient fplus;
     @Inject private Request httpReq;
     @Inject private UriInfo uriInfo;
     @Inject private SecurityContext auth;
+    @Context private ContainerRequestContext request;
 
     private static final Logger log = LoggerFactory.getLogger(Sparql.class);
 
+    /* For the @AsyncAuth methods. The graph uploads stay synchronous
+     * as they read the request body on the request thread. */
+    private Single<SecurityContext> asyncAuth ()
+    {
+        return AuthFilter.securityContext(request);
+    }
+
     static {
         /* This will be called automatically when we call a RIOT
          * function, but that's too late for the selection logic below. */
@@ -102,49 +123,124 @@ public class Sparql {
     private static final ContentHandler RDF_HANDLER =
         new ContentHandler(RDF_TYPES, RDFLanguages::contentTypeToLang);
 
+    @FunctionalInterface
+    private interface ResultWriter
+    {
+        void write (QueryExecution qe, Lang lang, OutputStream os);
+    }
+
     private static record QueryHandler (
         ContentHandler content,
-        BiFunction<QueryExecution, Lang, StreamingOutput> handle) { };
+        ResultWriter write) { };
 
+    /* These write the results as the query produces them. They must be
+     * called inside the read txn. */
     private static Map<QueryType, QueryHandler> HANDLERS = Map.of(
         QueryType.ASK,
         new QueryHandler(RS_HANDLER,
-            (qe, l) -> {
-                boolean rs = qe.execAsk();
-                return os -> ResultSetFormatter.output(os, rs, l);
-            }),
+            (qe, l, os) -> ResultSetFormatter.output(os, qe.execAsk(), l)),
         QueryType.SELECT,
         new QueryHandler(RS_HANDLER,
-            (qe, l) -> {
-                ResultSet rs = qe.execSelect().materialise();
-                return os -> ResultSetFormatter.output(os, rs, l);
-            }),
+            (qe, l, os) -> ResultSetFormatter.output(os, qe.execSelect(), l)),
         QueryType.CONSTRUCT,
-        new QueryHandler(RDF_HANDLER,
-            (qe, l) -> {
-                /* We need to copy the results while we are inside the
-                 * transaction. The execConstruct method returns a Model
-                 * which is only valid within the txn. */
-                var trips = qe.execConstructTriples();
-                var rs = GraphMemFactory.createDefaultGraph();
-                GraphUtil.add(rs, trips);
-                return os -> RDFDataMgr.write(os, rs, l);
-            }));
+        new QueryHandler(RDF_HANDLER, Sparql::writeConstruct));
+
+    private static void writeConstruct (QueryExecution qe, Lang lang, OutputStream os)
+    {
+        var trips = qe.execConstructTriples();
+
+        if (StreamRDFWriter.registered(lang)) {
+            var out = StreamRDFWriter.getWriterStream(os, lang);
+            out.start();
+            trips.forEachRemaining(out::triple);
+            out.finish();
+            return;
+        }
+
+        /* RDF/XML and the JSON formats need the whole graph before
+         * they can start writing. The row limit bounds this. */
+        var rs = GraphMemFactory.createDefaultGraph();
+        GraphUtil.add(rs, trips);
+        RDFDataMgr.write(os, rs, lang);
+    }
+
+    /* Ad-hoc queries (from dashboards, for instance) must not be able
+     * to stall or exhaust the MetaDB. These can be overridden with
+     * SPARQL_TIMEOUT (in seconds) and SPARQL_ROW_LIMIT. */
+    private static final long DEFAULT_TIMEOUT = 60;
+    private static final long DEFAULT_ROW_LIMIT = 100000;
+
+    private long confLong (String key, long dflt)
+    {
+        return fplus.getOptionConf(key)
+            .map(Long::parseLong)
+            .getOrElse(dflt);
+    }
+
+    /* We apply the row limit as a LIMIT on the query. For CONSTRUCT
+     * this limits the solutions rather than the triples. */
+    private void limitRows (Query query)
+    {
+        if (!query.isSelectType() && !query.isConstructType())
+            return;
+
+        var max = confLong("sparql_row_limit", DEFAULT_ROW_LIMIT);
+        if (!query.hasLimit() || query.getLimit() > max)
+            query.setLimit(max);
+    }
+
+    /* TXN */
+    private void streamQuery (Query query, QueryHandler handler,
+        Lang lang, OutputStream os)
+    {
+        var timeout = confLong("sparql_timeout", DEFAULT_TIMEOUT);
+        var qexec = QueryExecution.dataset(store.dataset())
+            .query(query)
+            .timeout(timeout, TimeUnit.SECONDS)
+            .build();
+
+        try (qexec) {
+            handler.write().write(qexec, lang, os);
+        }
+        catch (RuntimeIOException | RiotException | UncheckedIOException e) {
+            /* Most likely the client has gone away. Closing the
+             * QueryExecution has stopped the query. */
+            log.info("SPARQL query aborted: {}", e.toString());
+            throw e;
+        }
+        catch (QueryCancelledException e) {
+            log.info("SPARQL query timed out after {}s", timeout);
+            throw new WebApplicationException(503);
+        }
+    }
 
     @POST @Path("sparql")
     @Consumes("application/sparql-update")
-    public void update (String update)
+    @AsyncAuth
+    public void update (String update, @Suspended AsyncResponse res)
     {
-        store.requestExecute(auth, req -> {
+        Async.write(res, store.requestExecuteAsync(asyncAuth(), false, req -> {
             req.checkACL(Vocab.Perm.WriteRDF, FPUuid.Null);
-            UpdateAction.parseExecute(update, store.dataset());
+            var request = UpdateFactory.create(update);
+            /* CLEAR and DROP bypass the change listener, as do ADD,
+             * COPY and MOVE which may clear their target. Otherwise we
+             * can track the changes and only check what was touched. */
+            var bypass = request.getOperations().stream()
+                .anyMatch(op -> op instanceof UpdateDropClear
+                    || op instanceof UpdateBinaryOp);
+            if (bypass)
+                req.modelUpdate().untracked();
+            UpdateAction.execute(request, store.dataset());
+            store.rebind();
             store.validateZFC();
-        });
+        }));
     }
 
     @POST @Path("sparql")
     @Consumes("application/sparql-query")
-    public StreamingOutput sparql (String queryString) throws WebApplicationException
+    @AsyncAuth
+    public void sparql (String queryString, @Suspended AsyncResponse res)
+        throws WebApplicationException
     {
         var query = Try.of(() -> QueryFactory.create(queryString))
             .getOrElseThrow(e -> new WebApplicationException(400));
@@ -154,32 +250,43 @@ public class Sparql {
             throw new WebApplicationException(422);
 
         var lang = handler.content().acceptLang(httpReq);
+        limitRows(query);
 
-        return store.requestRead(auth, req -> {
+        /* Check the ACL up front so we can still return an error. The
+         * query runs in its own read txn, held open while we stream
+         * the results, so nothing is buffered on the heap. */
+        var output = store.requestReadAsync(asyncAuth(), req -> {
             req.checkACL(Vocab.Perm.ReadRDF, FPUuid.Null);
-            try (var qexec = QueryExecutionFactory.create(query, store.dataset())) {
-                return handler.handle().apply(qexec, lang);
-            }
+            return (StreamingOutput)os -> store.executeRead(() ->
+                streamQuery(query, handler, lang, os));
         });
+        Async.resume(res, output);
     }
 
     @GET @Path("sparql")
-    public StreamingOutput sparqlGet (@QueryParam("query") String qs)
+    @AsyncAuth
+    public void sparqlGet (@QueryParam("query") String qs,
+        @Suspended AsyncResponse res)
     {
-        return sparql(qs);
+        sparql(qs, res);
     }
 
     @POST @Path("sparql")
     @Consumes("application/x-www-form-urlencoded")
-    public StreamingOutput sparqlForm (@FormParam("query") String qs)
+    @AsyncAuth
+    public void sparqlForm (@FormParam("query") String qs,
+        @Suspended AsyncResponse res)
     {
-        return sparql(qs);
+        sparql(qs, res);
     }
 
-    private Model resolveGraph (boolean create)
+    /* The query parameters must be fetched on the request thread.
+     * This looks at the dataset, so for the @AsyncAuth methods it must
+     * not be called until the client is authenticated. */
+    private Model resolveGraph (MultivaluedMap<String, String> params,
+        boolean create)
     {
         var dataset = store.dataset();
-        var params = uriInfo.getQueryParameters();
         var isDef = params.getFirst("default");
         var graph = params.getFirst("graph");
 
@@ -197,37 +304,56 @@ public class Sparql {
     }
 
     @GET @Path("rdf")
-    public StreamingOutput graphGet ()
+    @AsyncAuth
+    public void graphGet (@Suspended AsyncResponse res)
     {
         var lang = RDF_HANDLER.acceptLang(httpReq);
-        var graph = resolveGraph(false);
+        var params = uriInfo.getQueryParameters();
 
-        /* We defer txn start until the streaming write starts. */
-        return os -> store.requestExecute(auth, req -> {
+        /* The txn for the write starts when the streaming write
+         * starts. This must be a read txn; a write here would hold up
+         * the write queue while we stream to the client. */
+        var output = store.requestReadAsync(asyncAuth(), req -> {
             req.checkACL(Vocab.Perm.ReadRDF, FPUuid.Null);
-            RDFDataMgr.write(os, graph, lang);
+            var graph = resolveGraph(params, false);
+            return (StreamingOutput)os -> store.executeRead(() ->
+                RDFDataMgr.write(os, graph, lang));
         });
+        Async.resume(res, output);
+    }
+
+    /* The body is parsed before the write, as the write callback may
+     * be run again if another request in its batch fails. */
+    private Model parseGraph (InputStream rdf, Lang lang)
+    {
+        var data = ModelFactory.createDefaultModel();
+        try {
+            RDFDataMgr.read(data, rdf, lang);
+            return data;
+        }
+        catch (Throwable e) {
+            throw badGraph(e);
+        }
+    }
+
+    private static WebApplicationException badGraph (Throwable e)
+    {
+        var res = Response.status(422)
+            .type("text/plain")
+            .entity(e.getMessage() + "\r\n")
+            .build();
+        return new WebApplicationException(res); 
     }
 
     /* TXN */
-    private void readToGraph (Model graph, InputStream rdf, Lang lang)
+    private void loadGraph (Model graph, Model data, boolean replace)
     {
         try {
-            RDFDataMgr.read(graph, rdf, lang);
-            /* This refreshes the inferences because we have been poking
-             * around behind its back. Strictly this is only needed when
-             * we load to a graph which is a source for the inference,
-             * but graph load will not be a common operation. */
-            store.derived().rebind();
-            store.validateZFC();
+            store.loadGraph(graph, data, replace);
         }
         catch (SvcErr.Client e) { throw e; }
         catch (Throwable e) {
-            var res = Response.status(422)
-                .type("text/plain")
-                .entity(e.getMessage() + "\r\n")
-                .build();
-            throw new WebApplicationException(res); 
+            throw badGraph(e);
         }
     }
 
@@ -237,11 +363,12 @@ public class Sparql {
         @HeaderParam("content-type") String type)
     {
         var lang = RDF_HANDLER.contentLang(type);
-        var graph = resolveGraph(true);
+        var graph = resolveGraph(uriInfo.getQueryParameters(), true);
+        var data = parseGraph(rdf, lang);
 
         store.requestExecute(auth, req -> {
             req.checkACL(Vocab.Perm.WriteRDF, FPUuid.Null);
-            readToGraph(graph, rdf, lang);
+            loadGraph(graph, data, false);
         });
     }
 
@@ -251,12 +378,14 @@ public class Sparql {
         @HeaderParam("content-type") String type)
     {
         var lang = RDF_HANDLER.contentLang(type);
-        var graph = resolveGraph(true);
+        var graph = resolveGraph(uriInfo.getQueryParameters(), true);
+        var data = parseGraph(rdf, lang);
 
         store.requestExecute(auth, req -> {
             req.checkACL(Vocab.Perm.WriteRDF, FPUuid.Null);
-            graph.removeAll();
-            readToGraph(graph, rdf, lang);
+            /* This bypasses the change listener */
+            req.modelUpdate().untracked();
+            loadGraph(graph, data, true);
         });
     }
 }
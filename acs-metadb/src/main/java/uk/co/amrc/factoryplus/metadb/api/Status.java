@@ -0,0 +1,47 @@
+/*
+ * Factory+ RDF store
+ * Internal status endpoints
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.api;
+
+import jakarta.inject.*;
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.*;
+
+import jakarta.json.*;
+
+import uk.co.amrc.factoryplus.client.FPUuid;
+import uk.co.amrc.factoryplus.metadb.db.*;
+
+@Path("v2")
+public class Status {
+    @Inject private RdfStore db;
+    @Inject private SecurityContext auth;
+
+    /* These are internal details so we require the same permission as
+     * for reading the raw RDF. */
+    @GET @Path("metrics")
+    public JsonObject metrics ()
+    {
+        return db.requestRead(auth, req -> {
+            req.checkACL(Vocab.Perm.ReadRDF, FPUuid.Null);
+            return db.metrics().toJson();
+        });
+    }
+
+    /* Writes only check the class structure of the objects they
+     * touch. This checks the whole store, including the relation ranks,
+     * and fails with the usual 409 if anything is wrong. It is slow, so
+     * it is for administrators only. */
+    @GET @Path("zfc")
+    public void zfc ()
+    {
+        db.requestRead(auth, req -> {
+            req.checkACL(Vocab.Perm.WriteRDF, FPUuid.Null);
+            db.validateZFCFull();
+            return 1;
+        });
+    }
+}
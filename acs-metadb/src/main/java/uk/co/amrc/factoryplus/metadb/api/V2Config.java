@@ -13,6 +13,7 @@ import java.util.function.Supplier;
 import jakarta.inject.*;
 import jakarta.json.*;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.container.*;
 import jakarta.ws.rs.core.*;
 
 import org.slf4j.Logger;
@@ -21,29 +22,69 @@ import org.slf4j.LoggerFactory;
 import org.apache.jena.rdf.model.*;
 import org.apache.jena.vocabulary.*;
 
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
 import io.vavr.control.*;
 
 import uk.co.amrc.factoryplus.metadb.db.*;
+import uk.co.amrc.factoryplus.providers.AuthFilter;
+import uk.co.amrc.factoryplus.providers.AsyncAuth;
 
 @Path("v2/app/{app}/object/{object}")
 @Consumes("application/json")
+@AsyncAuth
 public class V2Config {
     private static final Logger log = LoggerFactory.getLogger(V2Config.class);
 
     @Inject private RdfStore store;
-    @Inject private SecurityContext auth;
+    @Context private ContainerRequestContext request;
 
     @PathParam("app")       private UUID app;
     @PathParam("object")    private UUID obj;
 
+    private Single<SecurityContext> auth ()
+    {
+        return AuthFilter.securityContext(request);
+    }
+
     @GET 
-    public Response get ()
+    public void get (@Suspended AsyncResponse res)
     {
         log.info("Get config for {}/{}", app, obj);
-        var entry = store.requestRead(auth, req -> {
+        var entry = store.requestReadAsync(auth(), req -> {
             req.checkACL(Vocab.Perm.ReadApp, app);
             return req.configEntry(app, obj).getValue();
         });
+        Async.resume(res, entry.map(this::entryResponse));
+    }
+
+    /* A schema change must not invalidate existing configs. Checking
+     * this can mean validating many configs, so we do it here against
+     * a snapshot, before we queue the write, and the write txn only
+     * has to look at configs changed since. The check is released
+     * when the write finishes, however it finishes. */
+    private Completable checkSchema (Option<JsonValue> schema,
+        Completable write)
+    {
+        if (!app.equals(Vocab.App.U_ConfigSchema))
+            return write;
+
+        var schemas = store.schemaTracker();
+        return store.requestReadAsync(auth(), req -> {
+                req.checkACL(Vocab.Perm.WriteApp, app);
+                return schemas.prepare(store.findObjectOrError(obj), schema);
+            })
+            .observeOn(Schedulers.computation())
+            .flatMapCompletable(check -> {
+                schemas.check(check);
+                return write.doFinally(() -> schemas.release(check));
+            });
+    }
+
+    private Response entryResponse (Option<ConfigEntry.Value> entry)
+    {
         return entry
             .map(e -> {
                 var res = Response.ok(e.value())
@@ -60,41 +101,44 @@ public class V2Config {
      * cause 500 rather than 400 errors for invalid JSON. I think both
      * these could be fixed with a more careful Entity Provider. */
     @PUT 
-    public void put (JsonValue config)
+    public void put (JsonValue config, @Suspended AsyncResponse res)
     {
         log.info("Put config for {}/{}", app, obj);
         var needUUID = app.equals(Vocab.App.U_Registration);
         log.info("put: app {} needUUID {}", app, needUUID);
 
-        store.requestExecute(auth, needUUID, req -> {
+        var write = store.requestExecuteAsync(auth(), needUUID, req -> {
             log.info("Put config: calling checkACL");
             req.checkACL(Vocab.Perm.WriteApp, app);
             log.info("Put config: calling putValue");
             req.configEntry(app, obj).putValue(config);
         });
+        Async.write(res, checkSchema(Option.some(config), write));
     }
 
     @DELETE
-    public void delete ()
+    public void delete (@Suspended AsyncResponse res)
     {
         log.info("Delete config for {}/{}", app, obj);
-        if (app.equals(Vocab.App.U_Registration))
-            throw new RdfErr.Immutable();
 
-        store.requestExecute(auth, req -> {
+        /* Unauthenticated clients get nothing but a 401 */
+        var write = store.requestExecuteAsync(auth(), false, req -> {
             req.checkACL(Vocab.Perm.WriteApp, app);
+            if (app.equals(Vocab.App.U_Registration))
+                throw new RdfErr.Immutable();
             req.configEntry(app, obj).removeValue();
         });
+        Async.write(res, checkSchema(Option.none(), write));
     }
 
     @PATCH @Consumes("application/merge-patch+json")
-    public void mergePatch (JsonValue json)
+    public void mergePatch (JsonValue json, @Suspended AsyncResponse res)
     {
         var needUUID = app.equals(Vocab.App.U_Registration);
         log.info("mergePatch: app {} needUUID {}", app, needUUID);
         var patch = Json.createMergePatch(json);
 
-        store.requestExecute(auth, needUUID, req -> {
+        Async.write(res, store.requestExecuteAsync(auth(), needUUID, req -> {
             req.checkACL(Vocab.Perm.ReadApp, app);
             req.checkACL(Vocab.Perm.WriteApp, app);
             var entry = req.configEntry(app, obj);
@@ -109,6 +153,6 @@ public class V2Config {
 
             var n_conf = patch.apply(o_conf);
             entry.putValue(n_conf);
-        });
+        }));
     }
 }
@@ -11,31 +11,42 @@ import java.util.UUID;
 
 import jakarta.inject.*;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.container.*;
 import jakarta.ws.rs.core.*;
 
 import jakarta.json.*;
 
+import io.reactivex.rxjava3.core.Single;
+
 import io.vavr.control.Option;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.co.amrc.factoryplus.metadb.db.*;
+import uk.co.amrc.factoryplus.providers.AuthFilter;
+import uk.co.amrc.factoryplus.providers.AsyncAuth;
 import uk.co.amrc.factoryplus.service.*;
 
 @Path("v2")
+@AsyncAuth
 public class V2Objects {
     @Inject private RdfStore db;
-    @Inject private SecurityContext auth;
+    @Context private ContainerRequestContext request;
 
     private static final Logger log = LoggerFactory.getLogger(V2Objects.class);
 
+    private Single<SecurityContext> auth ()
+    {
+        return AuthFilter.securityContext(request);
+    }
+
     @GET @Path("object")
-    public JsonArray listObjects ()
+    public void listObjects (@Suspended AsyncResponse res)
     {
-        var objs = db.requestRead(auth, req ->
+        var objs = db.requestReadAsync(auth(), req ->
             req.objectStructure().listObjects());
-        return Json.createArrayBuilder(objs).build();
+        Async.resume(res, objs.map(o -> Json.createArrayBuilder(o).build()));
     }
 
     private UUID jsonUUID (JsonValue val)
@@ -48,7 +59,7 @@ public class V2Objects {
     }
 
     @POST @Path("object")
-    public JsonValue createObject (JsonObject spec)
+    public void createObject (JsonObject spec, @Suspended AsyncResponse res)
     {
         var klass = jsonUUID(spec.get("class"));
         var uuid = Option.of(spec.get("uuid"))
@@ -62,98 +73,132 @@ public class V2Objects {
         /* We don't accept any other parameters. The ServiceClient
          * doesn't pass any anyway. */
 
-        return db.requestWrite(auth, true, req ->
-            req.objectStructure().createObject(klass, uuid, owner));
+        Async.write(res, db.requestWriteAsync(auth(), true, req ->
+            req.objectStructure().createObject(klass, uuid, owner)));
     }
 
     @DELETE @Path("object/{object}")
-    public void deleteObject (@PathParam("object") UUID uuid)
+    public void deleteObject (@PathParam("object") UUID uuid,
+        @Suspended AsyncResponse res)
     {
-        db.requestExecute(auth, req ->
-            req.objectStructure().deleteObject(uuid));
+        Async.write(res, db.requestExecuteAsync(auth(), false, req ->
+            req.objectStructure().deleteObject(uuid)));
     }
 
     @GET @Path("object/rank")
-    public JsonArray listRanks ()
+    public void listRanks (@Suspended AsyncResponse res)
     {
-        var ranks = db.requestRead(auth, req ->
+        var ranks = db.requestReadAsync(auth(), req ->
             req.objectStructure().listRanks());
-        return Json.createArrayBuilder(ranks).build();
+        Async.resume(res, ranks.map(r -> Json.createArrayBuilder(r).build()));
     }
 
-    private JsonArray listRelation (boolean direct, UUID uuid, String relation)
+    private Single<JsonArray> listRelation (boolean direct, UUID uuid, String relation)
     {
-        var members = db.requestRead(auth, req ->
+        var members = db.requestReadAsync(auth(), req ->
             req.objectStructure()
                 .listRelation(direct, uuid, relation));
 
-        return Json.createArrayBuilder(members).build();
+        return members.map(m -> Json.createArrayBuilder(m).build());
     }
 
     @GET @Path("class/{class}/{relation}")
-    public JsonArray listDerivedRelation (
+    public void listDerivedRelation (
         @PathParam("class") UUID uuid,
-        @PathParam("relation") String relation)
+        @PathParam("relation") String relation,
+        @Suspended AsyncResponse res)
     {
-        return listRelation(false, uuid, relation);
+        Async.resume(res, listRelation(false, uuid, relation));
     }
 
     /* This duplication is a bug in the API design. If we had
      * graph/{graph}/class/… instead then we could just redispatch to a
      * graph-specific subresource. */
     @GET @Path("class/{class}/direct/{relation}")
-    public JsonArray listDirectRelation (
+    public void listDirectRelation (
         @PathParam("class") UUID uuid,
-        @PathParam("relation") String relation)
+        @PathParam("relation") String relation,
+        @Suspended AsyncResponse res)
+    {
+        Async.resume(res, listRelation(true, uuid, relation));
+    }
+
+    private Single<JsonArray> listObjectRelation (boolean direct, UUID uuid, String relation)
+    {
+        var classes = db.requestReadAsync(auth(), req ->
+            req.objectStructure()
+                .listObjectRelation(direct, uuid, relation));
+
+        return classes.map(c -> Json.createArrayBuilder(c).build());
+    }
+
+    @GET @Path("object/{object}/{relation}")
+    public void listDerivedObjectRelation (
+        @PathParam("object") UUID uuid,
+        @PathParam("relation") String relation,
+        @Suspended AsyncResponse res)
+    {
+        Async.resume(res, listObjectRelation(false, uuid, relation));
+    }
+
+    @GET @Path("object/{object}/direct/{relation}")
+    public void listDirectObjectRelation (
+        @PathParam("object") UUID uuid,
+        @PathParam("relation") String relation,
+        @Suspended AsyncResponse res)
     {
-        return listRelation(true, uuid, relation);
+        Async.resume(res, listObjectRelation(true, uuid, relation));
     }
 
-    private Response testRelation (boolean direct, UUID klass, String relation, UUID object)
+    private Single<Response> testRelation (boolean direct, UUID klass, String relation, UUID object)
     {
-        var rv = db.requestRead(auth, req ->
+        var rv = db.requestReadAsync(auth(), req ->
             req.objectStructure()
                 .testRelation(direct, klass, relation, object));
 
-        return Response.status(rv ? 204 : 404).build();
+        return rv.map(r -> Response.status(r ? 204 : 404).build());
     }
 
     @GET @Path("class/{class}/{relation}/{object}")
-    public Response handleDerivedRelation (
+    public void handleDerivedRelation (
         @PathParam("class") UUID klass,
         @PathParam("relation") String relation,
-        @PathParam("object") UUID object)
+        @PathParam("object") UUID object,
+        @Suspended AsyncResponse res)
     {
-        return testRelation(false, klass, relation, object);
+        Async.resume(res, testRelation(false, klass, relation, object));
     }
 
     @GET @Path("class/{class}/direct/{relation}/{object}")
-    public Response handleDirectRelation (
+    public void handleDirectRelation (
         @PathParam("class") UUID klass,
         @PathParam("relation") String relation,
-        @PathParam("object") UUID object)
+        @PathParam("object") UUID object,
+        @Suspended AsyncResponse res)
     {
-        return testRelation(true, klass, relation, object);
+        Async.resume(res, testRelation(true, klass, relation, object));
     }
 
     @PUT @Path("class/{class}/direct/{relation}/{object}")
     public void putRelation (
         @PathParam("class") UUID klass,
         @PathParam("relation") String relation,
-        @PathParam("object") UUID object)
+        @PathParam("object") UUID object,
+        @Suspended AsyncResponse res)
     {
-        db.requestExecute(auth, req ->
-            req.objectStructure().putRelation(klass, relation, object));
+        Async.write(res, db.requestExecuteAsync(auth(), false, req ->
+            req.objectStructure().putRelation(klass, relation, object)));
     }
 
     @DELETE @Path("class/{class}/direct/{relation}/{object}")
     public void delRelation (
         @PathParam("class") UUID klass,
         @PathParam("relation") String relation,
-        @PathParam("object") UUID object)
+        @PathParam("object") UUID object,
+        @Suspended AsyncResponse res)
     {
-        db.requestExecute(auth, req ->
-            req.objectStructure().delRelation(klass, relation, object));
+        Async.write(res, db.requestExecuteAsync(auth(), false, req ->
+            req.objectStructure().delRelation(klass, relation, object)));
     }
 }
 
@@ -27,8 +27,10 @@ import uk.co.amrc.factoryplus.service.*;
 public class AppMapper {
     private static final Logger log = LoggerFactory.getLogger(AppMapper.class);
 
-    /* Specific updaters for individual Apps. These should be replaced
-     * with queries generated from schema entries. */
+    /* Apps whose ConfigSchema carries RDF mappings use queries compiled
+     * from the schema; see AppMapping. These are the built-in queries
+     * for our own apps. Registration entries are derived from the
+     * object structure and are always generated here. */
 
     private static final Query Q_objectRegistration = Vocab.query("""
         select ?uuid ?rank ?class ?owner ?strict ?deleted
@@ -115,11 +117,20 @@ public class AppMapper {
         this.db = db;
     }
 
+    private Option<AppMapping> compiled (Resource app)
+    {
+        if (app.equals(Vocab.App.Registration))
+            return Option.none();
+        return db.schemaTracker().mapping(app);
+    }
+
     public Option<JsonValue> generateConfig (Resource app, Resource obj)
     {
-        return Option.of(generators.get(app))
-            .flatMap(q -> db.optionalQuery(q, "obj", obj))
-            .map(AppMapper::solutionToJson);
+        return compiled(app)
+            .map(m -> m.generateConfig(db, obj))
+            .getOrElse(() -> Option.of(generators.get(app))
+                .flatMap(q -> db.optionalQuery(q, "obj", obj))
+                .map(AppMapper::solutionToJson));
     }
 
     public void deleteConfig (Resource app, Resource obj)
@@ -127,8 +138,10 @@ public class AppMapper {
         if (app.equals(Vocab.App.Registration))
             throw new RdfErr.Immutable();
 
-        Option.of(deleters.get(app))
-            .peek(d -> db.runUpdate(d, "obj", obj));
+        compiled(app)
+            .peek(m -> m.deleteConfig(db, obj))
+            .onEmpty(() -> Option.of(deleters.get(app))
+                .peek(d -> db.runUpdate(d, "obj", obj)));
     }
 
     public void updateConfig (Resource app, Resource obj, JsonValue config)
@@ -139,6 +152,12 @@ public class AppMapper {
             throw new IllegalArgumentException(
                 "updateConfig cannot handle Registration entries");
 
+        var mapping = compiled(app);
+        if (mapping.isDefined()) {
+            mapping.get().updateConfig(db, obj, config);
+            return;
+        }
+
         var sol = jsonToSolution(config);
 
         deleteConfig(app, obj);
@@ -150,9 +169,9 @@ public class AppMapper {
                 .execute());
     }
 
-    /* Currently this does dynamic decoding based on what was returned
-     * from the RDF. Once we have query generation we should be able to
-     * use the <core/to> properties to know what we are expecting. */
+    /* The built-in queries are decoded dynamically based on what was
+     * returned from the RDF. Compiled mappings know the types from the
+     * schema. */
     private static JsonValue literalToJson (RDFNode node)
     {
         /* This should probably be selected based on optional/nullable
@@ -179,9 +198,8 @@ public class AppMapper {
         return jobj.build();
     }
 
-    /* XXX This can only convert strings for now. In general we will
-     * need expected type information as RDF has a richer type system
-     * than JSON. */
+    /* The built-in mappings only hold strings. Compiled mappings use
+     * the schema types. */
     private static Literal jsonToLiteral (JsonValue val)
     {
         if (!(val instanceof JsonString))
@@ -0,0 +1,373 @@
+/*
+ * Factory+ metadata database
+ * Structured app mappings compiled from schemas
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+import jakarta.json.*;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.irix.IRIException;
+import org.apache.jena.irix.IRIx;
+import org.apache.jena.query.*;
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.update.*;
+import org.apache.jena.vocabulary.*;
+
+import io.vavr.collection.*;
+import io.vavr.control.*;
+
+import uk.co.amrc.factoryplus.service.*;
+
+/* A mapping between the config entries of a structured app and
+ * ordinary triples on the object, compiled from the app's ConfigSchema.
+ * Properties in the schema are mapped by an `rdf` keyword giving the
+ * property IRI, relative to our namespace as in our SPARQL:
+ *
+ *  { "type": "object",
+ *    "required": ["group_id"],
+ *    "properties": {
+ *      "group_id": { "type": "string", "rdf": "sparkplug/groupId" },
+ *      "port": { "type": "integer", "rdf": "example/port" },
+ *      "limits": { "type": "object", "rdf": "example/limits",
+ *        "properties": {
+ *          "max": { "type": "number", "rdf": "example/max" } } } } }
+ *
+ * The JSON Schema type selects the literal datatype: strings are plain
+ * literals, integers xsd:integer, numbers xsd:decimal, booleans
+ * xsd:boolean. Objects with properties become blank nodes with their
+ * own mapped properties. Anything else is stored as an rdf:JSON
+ * literal. Schema properties without `rdf` are not mapped, and configs
+ * which use them cannot be stored.
+ *
+ * Required properties must be present for an object to have a config
+ * entry; if there are none then any one mapped property will do.
+ *
+ * We compile the queries once when the schema changes, so they are
+ * static for RdfStore's prepared query cache.
+ */
+public class AppMapping
+{
+    /** The schema keyword giving the RDF property. */
+    public static final String KEYWORD = "rdf";
+
+    private static final IRIx BASE = IRIx.create(Vocab.NS);
+
+    /* Properties in these namespaces carry the RDFS structure or our
+     * own object and config bookkeeping. A config must not be able to
+     * write them, as it can bypass the checks on ordinary writes. */
+    private static final List<String> RESERVED = List.of(
+        RDF.getURI(), RDFS.getURI(), OWL.getURI(),
+        Vocab.NS_core, Vocab.NS_app, Vocab.NS_uuid, Vocab.NS_graph,
+        Vocab.NS_config);
+
+    private enum Type { STRING, INTEGER, NUMBER, BOOLEAN, JSON, OBJECT }
+
+    /* A mapped JSON property. Each field has its own SPARQL variable;
+     * for an object this is bound to the blank node. */
+    private record Field (String key, Resource prop, Type type,
+        boolean required, String var, List<Field> fields)
+    {
+        public Stream<Field> flatten ()
+        {
+            return Stream.of(this)
+                .appendAll(fields.toStream().flatMap(Field::flatten));
+        }
+    }
+
+    private List<Field>     fields;
+    private Query           generator;
+    private UpdateRequest   deleter;
+    private UpdateRequest   updater;
+
+    private AppMapping (List<Field> fields)
+    {
+        this.fields = fields;
+
+        var all = fields.toStream().flatMap(Field::flatten);
+        generator   = Vocab.query(generatorSparql(all));
+        deleter     = Vocab.update(deleterSparql());
+        updater     = Vocab.update(updaterSparql(all));
+    }
+
+    /** Compile a mapping from a ConfigSchema.
+     * Returns None if the schema maps no properties.
+     * @throws RdfErr.BadMapping If the mapping is not usable. */
+    public static Option<AppMapping> compile (JsonValue schema)
+    {
+        var counter = new int[] { 0 };
+        var fields = compileFields(schema, counter);
+        return fields.isEmpty() ? Option.none()
+            : Option.some(new AppMapping(fields));
+    }
+
+    private static List<Field> compileFields (JsonValue schema, int[] counter)
+    {
+        var props = Option.of(schema)
+            .filter(s -> s instanceof JsonObject)
+            .map(s -> s.asJsonObject().get("properties"))
+            .filter(p -> p instanceof JsonObject)
+            .map(JsonValue::asJsonObject);
+        if (props.isEmpty())
+            return List.empty();
+
+        var required = Option.of(schema.asJsonObject().get("required"))
+            .filter(r -> r instanceof JsonArray)
+            .map(r -> List.ofAll(r.asJsonArray())
+                .filter(v -> v instanceof JsonString)
+                .map(v -> ((JsonString)v).getString())
+                .toSet())
+            .getOrElse(HashSet::empty);
+
+        return List.ofAll(props.get().entrySet())
+            .filter(e -> e.getValue() instanceof JsonObject
+                && e.getValue().asJsonObject().containsKey(KEYWORD))
+            .map(e -> compileField(e.getKey(), e.getValue().asJsonObject(),
+                required.contains(e.getKey()), counter));
+    }
+
+    private static Field compileField (String key, JsonObject schema,
+        boolean required, int[] counter)
+    {
+        var prop = resolve(schema.get(KEYWORD));
+        var name = "v" + counter[0]++;
+        var type = typeOf(schema);
+
+        if (type != Type.OBJECT)
+            return new Field(key, prop, type, required, name, List.empty());
+
+        var fields = compileFields(schema, counter);
+        if (fields.isEmpty())
+            throw new RdfErr.BadMapping("Object has no mapped properties: " + key);
+        return new Field(key, prop, type, required, name, fields);
+    }
+
+    /* The IRI must resolve cleanly; we interpolate it into SPARQL. */
+    private static Resource resolve (JsonValue rdf)
+    {
+        if (!(rdf instanceof JsonString))
+            throw new RdfErr.BadMapping("RDF property must be a string");
+
+        String iri;
+        try {
+            var resolved = BASE.resolve(((JsonString)rdf).getString());
+            if (!resolved.isAbsolute())
+                throw new RdfErr.BadMapping("Bad RDF property: " + rdf);
+            iri = resolved.str();
+        }
+        catch (IRIException e) {
+            throw new RdfErr.BadMapping("Bad RDF property: " + rdf)
+                .initCause(e);
+        }
+
+        if (RESERVED.exists(iri::startsWith))
+            throw new RdfErr.BadMapping("Reserved RDF property: " + iri);
+        return ResourceFactory.createResource(iri);
+    }
+
+    private static Type typeOf (JsonObject schema)
+    {
+        var type = schema.get("type");
+        if (!(type instanceof JsonString))
+            return Type.JSON;
+
+        switch (((JsonString)type).getString()) {
+            case "string":  return Type.STRING;
+            case "integer": return Type.INTEGER;
+            case "number":  return Type.NUMBER;
+            case "boolean": return Type.BOOLEAN;
+            case "object":
+                return schema.get("properties") instanceof JsonObject
+                    ? Type.OBJECT : Type.JSON;
+            default:        return Type.JSON;
+        }
+    }
+
+    /* Query generation. Variables are only ever our own v<n>. */
+
+    private static String triple (String subj, Field f)
+    {
+        return String.format("?%s <%s> ?%s.", subj, f.prop().getURI(), f.var());
+    }
+
+    private static String pattern (String subj, List<Field> fields)
+    {
+        return fields
+            .map(f -> {
+                var p = triple(subj, f) + " " + pattern(f.var(), f.fields());
+                return f.required() ? p : "optional { " + p + " }";
+            })
+            .mkString("\n");
+    }
+
+    private String generatorSparql (Stream<Field> all)
+    {
+        var vars = all.map(f -> "?" + f.var()).mkString(" ");
+        /* If nothing is required we need at least one property, or
+         * every object in the domain would get an empty entry. */
+        var filter = fields.exists(Field::required) ? ""
+            : fields.map(f -> "bound(?" + f.var() + ")")
+                .mkString("filter(", " || ", ")");
+
+        return "select " + vars + " where {\n"
+            + pattern("obj", fields) + "\n" + filter + "\n}";
+    }
+
+    /* Remove the deepest triples first; once the link to a blank node
+     * has gone we cannot find its properties. */
+    private static List<String> deletes (String subj, List<String> path, Field f)
+    {
+        var here = path.append(triple(subj, f));
+        return f.fields()
+            .flatMap(c -> deletes(f.var(), here, c))
+            .append("delete where { " + here.mkString(" ") + " };");
+    }
+
+    private String deleterSparql ()
+    {
+        return fields
+            .flatMap(f -> deletes("obj", List.empty(), f))
+            .mkString("\n");
+    }
+
+    /* Triples with unbound variables are not inserted, so absent
+     * properties are simply skipped. */
+    private String updaterSparql (Stream<Field> all)
+    {
+        var triples = fields
+            .map(f -> triple("obj", f))
+            .appendAll(all
+                .filter(f -> f.type() == Type.OBJECT)
+                .flatMap(f -> f.fields().map(c -> triple(f.var(), c))));
+        return "insert { " + triples.mkString("\n") + " } where {};";
+    }
+
+    /* Reading configs. */
+
+    /* TXN */
+    public Option<JsonValue> generateConfig (RdfStore db, Resource obj)
+    {
+        return db.optionalQuery(generator, "obj", obj)
+            .map(qs -> toJson(qs, fields));
+    }
+
+    private static JsonValue toJson (QuerySolution qs, List<Field> fields)
+    {
+        var obj = Json.createObjectBuilder();
+        for (var f : fields) {
+            var node = qs.get(f.var());
+            if (node == null)
+                continue;
+            obj.add(f.key(), f.type() == Type.OBJECT
+                ? toJson(qs, f.fields())
+                : literalToJson(f.type(), node));
+        }
+        return obj.build();
+    }
+
+    private static JsonValue literalToJson (Type type, RDFNode node)
+    {
+        if (!node.isLiteral())
+            throw new RdfErr.NotLiteral(node);
+        var lit = node.asLiteral();
+        var lex = lit.getLexicalForm();
+
+        return Try.<JsonValue>of(() -> switch (type) {
+                case STRING     -> Json.createValue(lex);
+                case INTEGER    -> Json.createValue(new BigInteger(lex));
+                case NUMBER     -> Json.createValue(new BigDecimal(lex));
+                case BOOLEAN    -> switch (lex) {
+                    case "true", "1"    -> JsonValue.TRUE;
+                    case "false", "0"   -> JsonValue.FALSE;
+                    default -> throw new IllegalArgumentException(lex);
+                };
+                default         -> Decoders.readJsonOrError(lex);
+            })
+            .getOrElseThrow(() -> new RdfErr.BadLiteral(lit));
+    }
+
+    /* Writing configs. */
+
+    /* TXN */
+    public void deleteConfig (RdfStore db, Resource obj)
+    {
+        db.runUpdate(deleter, "obj", obj);
+    }
+
+    /* TXN */
+    public void updateConfig (RdfStore db, Resource obj, JsonValue config)
+    {
+        var substs = new ArrayList<Object>();
+        substs.add("obj");
+        substs.add(obj);
+        bindFields(substs, config, fields);
+
+        deleteConfig(db, obj);
+        db.runUpdate(updater, substs.toArray());
+    }
+
+    private static void bindFields (java.util.List<Object> substs,
+        JsonValue config, List<Field> fields)
+    {
+        if (!(config instanceof JsonObject))
+            throw new SvcErr.BadJson(config);
+        var json = config.asJsonObject();
+
+        /* We have nowhere to put unmapped properties */
+        var known = fields.map(Field::key).toSet();
+        if (!known.containsAll(json.keySet()))
+            throw new SvcErr.BadJson(config);
+
+        for (var f : fields) {
+            var val = json.get(f.key());
+            if (val == null || val.getValueType() == JsonValue.ValueType.NULL)
+                continue;
+
+            substs.add(f.var());
+            if (f.type() == Type.OBJECT) {
+                substs.add(ResourceFactory.createResource());
+                bindFields(substs, val, f.fields());
+            }
+            else
+                substs.add(jsonToLiteral(f.type(), val));
+        }
+    }
+
+    private static Literal jsonToLiteral (Type type, JsonValue val)
+    {
+        switch (type) {
+            case STRING:
+                if (val instanceof JsonString)
+                    return ResourceFactory.createPlainLiteral(
+                        ((JsonString)val).getString());
+                break;
+            case INTEGER:
+                if (val instanceof JsonNumber && ((JsonNumber)val).isIntegral())
+                    return ResourceFactory.createTypedLiteral(
+                        ((JsonNumber)val).bigIntegerValue().toString(),
+                        XSDDatatype.XSDinteger);
+                break;
+            case NUMBER:
+                if (val instanceof JsonNumber)
+                    return ResourceFactory.createTypedLiteral(
+                        ((JsonNumber)val).bigDecimalValue().toPlainString(),
+                        XSDDatatype.XSDdecimal);
+                break;
+            case BOOLEAN:
+                if (val.equals(JsonValue.TRUE) || val.equals(JsonValue.FALSE))
+                    return ResourceFactory.createTypedLiteral(
+                        val.toString(), XSDDatatype.XSDboolean);
+                break;
+            default:
+                return ResourceFactory.createTypedLiteral(
+                    val.toString(), RDF.dtRDFJSON);
+        }
+        throw new SvcErr.BadJson(val);
+    }
+}
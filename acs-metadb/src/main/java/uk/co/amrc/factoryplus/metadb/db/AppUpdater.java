@@ -75,7 +75,82 @@ public class AppUpdater extends RequestHandler.Component
         }
     """);
 
+    /* Above this many changed statements we give up and do a full
+     * pass; at this point per-object queries will cost more than the
+     * whole-graph queries. */
+    private static final int FULL_UPDATE_THRESHOLD = 5000;
+
     public void update ()
+    {
+        var changes = request().modelUpdate();
+
+        if (changes == null || !changes.isTracked()
+                || changes.size() > FULL_UPDATE_THRESHOLD
+                || touchesDomains(changes))
+            updateAll();
+        else
+            updateChanged(changes);
+    }
+
+    /* A change to the Structured apps themselves may affect any
+     * object, so we must fall back to a full update. */
+    private boolean touchesDomains (ModelUpdate changes)
+    {
+        var model = db().derived();
+        return changes.statements()
+            .exists(s -> s.getPredicate().equals(Vocab.App.appliesTo)
+                || s.getObject().equals(Vocab.App.Structured)
+                || model.contains(s.getSubject(), RDF.type, Vocab.App.Structured));
+    }
+
+    /* Find the objects whose structured entries may have changed. This
+     * relies on our only inference being rdfs:subClassOf; see the
+     * comment in RdfStore::requestWrite. Package-private for tests. */
+    Set<Resource> affectedObjects (ModelUpdate changes)
+    {
+        var model = db().derived();
+        var objs = new HashSet<Resource>(changes.subjects());
+
+        changes.statements().forEach(s -> {
+            var subj = s.getSubject();
+            var pred = s.getPredicate();
+
+            /* A change in superclasses changes the memberships of all
+             * the members of the subclass. A change in a class's rank
+             * changes the rank in its members' Registration entries. */
+            if (pred.equals(RDFS.subClassOf) || pred.equals(Vocab.rank))
+                model.listResourcesWithProperty(RDF.type, subj)
+                    .forEachRemaining(objs::add);
+
+            /* Nested values in compiled mappings hang off blank
+             * nodes; the entry belongs to the object above them. */
+            if (subj.isAnon())
+                addOwners(model, subj, objs);
+
+            /* Registration entries include the UUIDs of the owner and
+             * primary class. */
+            if (pred.equals(Vocab.uuid)) {
+                model.listResourcesWithProperty(Vocab.owner, subj)
+                    .forEachRemaining(objs::add);
+                model.listResourcesWithProperty(Vocab.primary, subj)
+                    .forEachRemaining(objs::add);
+            }
+        });
+
+        return objs;
+    }
+
+    private static void addOwners (Model model, Resource node, Set<Resource> objs)
+    {
+        model.listStatements(null, null, node)
+            .mapWith(Statement::getSubject)
+            .forEachRemaining(s -> {
+                if (objs.add(s) && s.isAnon())
+                    addOwners(model, s, objs);
+            });
+    }
+
+    private void updateAll ()
     {
         db().listQuery(Q_findUpdates)
             .forEach(row -> {
@@ -99,6 +174,26 @@ public class AppUpdater extends RequestHandler.Component
             });
     }
 
+    /* These are the same queries as updateAll, with ?obj bound to each
+     * changed object in turn. */
+    private void updateChanged (ModelUpdate changes)
+    {
+        for (var obj : affectedObjects(changes)) {
+            db().listQuery(Q_findUpdates, "obj", obj)
+                .forEach(row -> updateEntry(row.getResource("app"), obj));
+        }
+
+        /* Recalculate the affected objects as the first pass may have
+         * made more changes. */
+        for (var obj : affectedObjects(changes)) {
+            if (!db().listQuery(Q_findObjects, "obj", obj).isEmpty())
+                updateEntry(Vocab.App.Registration, obj);
+
+            db().listQuery(Q_orphanConfigs, "obj", obj)
+                .forEach(row -> db().removeResource(row.getResource("conf")));
+        }
+    }
+
     private void updateEntry (Resource app, Resource obj)
     {
         //log.info("Updating {} {}", app, obj);
@@ -163,7 +163,7 @@ public class BulkOperations extends RequestHandler.Component
         for (var o: objs)
             setRelations(o);
 
-        db().derived().rebind();
+        db().rebind();
         setRankSuperclasses();
         db().validateZFC();
     }
@@ -0,0 +1,131 @@
+/*
+ * Factory+ metadata database
+ * Committed change propagation
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Dataflow processing of a commit runs a query for config changes and
+ * re-runs the query for every relation with a notify subscriber. None
+ * of this affects the result of the write, so rather than running it
+ * on the writer thread before the write requests are completed we pass
+ * the committed changes to a single consumer thread here.
+ *
+ * Change sets are numbered in commit order and processed in that order,
+ * each in its own read txn. TDB2 txns are bound to a thread so this
+ * cannot be the snapshot the change committed; it may include later
+ * commits. This is safe as the dataflow always selects current values
+ * out of the derived graph, and any later commit will be processed in
+ * its turn. At worst a notify client sees a value a little early and
+ * then sees it again.
+ *
+ * The queue is bounded. If the consumer falls too far behind the writer
+ * thread blocks; we cannot drop changes, and this stops notifications
+ * lagging indefinitely behind commits.
+ */
+public class ChangeFeed
+{
+    private static final Logger log = LoggerFactory.getLogger(ChangeFeed.class);
+
+    /* The maximum number of committed change sets waiting. */
+    private static final int MAX_QUEUED = 256;
+
+    private record Change (long seq, ModelUpdate update, long committed) { }
+
+    private RdfStore db;
+    private BlockingQueue<Change> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private Thread consumer;
+
+    private AtomicLong published = new AtomicLong();
+    private volatile long processed;
+    private volatile long lastLag;
+
+    public ChangeFeed (RdfStore db)
+    {
+        this.db = db;
+
+        var metrics = db.metrics();
+        metrics.gauge("changes.published", published::get);
+        metrics.gauge("changes.processed", () -> processed);
+        metrics.gauge("changes.queued", queue::size);
+        metrics.gauge("changes.lag", () -> published.get() - processed);
+        metrics.gauge("changes.lag_ms", () -> lastLag);
+    }
+
+    public void start ()
+    {
+        consumer = new Thread(this::run, "rdf-changes");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /** The sequence number of the last change set published. */
+    public long published () { return published.get(); }
+
+    /** The sequence number of the last change set processed. */
+    public long processed () { return processed; }
+
+    /** Queue a committed change set.
+     * This is called from the writer thread after commit, and blocks
+     * if the queue is full. Returns the sequence number. */
+    public long publish (ModelUpdate update)
+    {
+        var seq = published.incrementAndGet();
+        update.committed(seq);
+        var change = new Change(seq, update, System.nanoTime());
+
+        if (!queue.offer(change)) {
+            log.warn("Change queue full, waiting for change {}", processed + 1);
+            db.metrics().increment("changes.stalls");
+            try {
+                queue.put(change);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted publishing changes", e);
+            }
+        }
+        return seq;
+    }
+
+    private void run ()
+    {
+        log.info("Starting change feed");
+        try {
+            while (true)
+                process(queue.take());
+        }
+        catch (InterruptedException e) {
+            log.info("Change feed interrupted");
+        }
+    }
+
+    private void process (Change change)
+    {
+        /* It is important that all dataflow processing that queries the
+         * update dataset happens syncronously. Otherwise it won't be in
+         * this transaction. The transaction is on our own Dataset,
+         * even though we will also be querying the update Dataset; this
+         * is important as Jena does not handle transactions via
+         * multiple Datasets referencing the same TDB correctly. */
+        try {
+            db.executeRead(() -> db.dataflow().modelUpdate(change.update()));
+        }
+        catch (Throwable e) {
+            /* The changes have committed; all we can do is carry on. */
+            log.error("Dataflow update {} failed", change.seq(), e);
+            db.metrics().increment("changes.failed");
+        }
+
+        processed = change.seq();
+        lastLag = (System.nanoTime() - change.committed()) / 1_000_000;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Factory+ metadata database
+ * Recent config change log
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.List;
+import io.vavr.control.Option;
+import io.vavr.control.Try;
+
+/* A bounded log of recent config changes. A notify client which
+ * reconnects can be sent the changes it has missed instead of a full
+ * snapshot, provided the log still reaches back far enough.
+ *
+ * Clients see cursors, which are change set numbers qualified with an
+ * epoch chosen at startup. Change set numbers restart with the
+ * process, so a cursor from a previous run will not be recognised and
+ * the client will get a full snapshot.
+ *
+ * Changes are recorded on the change feed thread, before they are
+ * passed to subscribers.
+ */
+public class ChangeLog
+{
+    /* The maximum number of config changes we keep */
+    private static final int MAX_ENTRIES = 10000;
+
+    private final UUID epoch = UUID.randomUUID();
+    private final ArrayDeque<Update.Config> entries = new ArrayDeque<>();
+
+    /* We hold every change from change set first onwards */
+    private long first = 1;
+    /* The last change set recorded */
+    private long last = 0;
+
+    synchronized void record (ModelUpdate changes, List<Update.Config> configs)
+    {
+        var seq = changes.seq();
+
+        /* We can't tell which configs an untracked update changed */
+        if (!changes.isTracked()) {
+            entries.clear();
+            first = seq + 1;
+        }
+
+        configs.forEach(entries::addLast);
+        last = seq;
+
+        while (entries.size() > MAX_ENTRIES)
+            first = Math.max(first, entries.removeFirst().seq() + 1);
+    }
+
+    public String cursor (long seq)
+    {
+        return epoch + ":" + seq;
+    }
+
+    /** A cursor for the changes recorded so far. */
+    public synchronized String current ()
+    {
+        return cursor(last);
+    }
+
+    /** Parse a cursor. Returns None if it is not one of ours. */
+    public Option<Long> parse (String cursor)
+    {
+        var ix = cursor.lastIndexOf(':');
+        if (ix < 0 || !cursor.substring(0, ix).equals(epoch.toString()))
+            return Option.none();
+        return Try.of(() -> Long.parseLong(cursor.substring(ix + 1)))
+            .toOption();
+    }
+
+    /** Can we supply all changes after this change set? */
+    public synchronized boolean covers (long seq)
+    {
+        return seq + 1 >= first && seq <= last;
+    }
+
+    /** The changes to an app after a change set.
+     * Returns the changes and the last change set they include, or None
+     * if the log no longer reaches back that far. */
+    public synchronized Option<Tuple2<List<Update.Config>, Long>> since (
+        long seq, UUID app)
+    {
+        if (!covers(seq))
+            return Option.none();
+
+        var missed = List.ofAll(entries)
+            .filter(u -> u.seq() > seq && u.app().equals(app));
+        return Option.some(Tuple.of(missed, last));
+    }
+}
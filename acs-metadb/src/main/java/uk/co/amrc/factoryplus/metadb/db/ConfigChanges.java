@@ -0,0 +1,131 @@
+/*
+ * Factory+ metadata database
+ * Config entry change extraction
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import jakarta.json.JsonValue;
+
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.RDF;
+
+import io.vavr.collection.Iterator;
+import io.vavr.collection.List;
+import io.vavr.control.Option;
+
+/* Finds the config entries changed by a committed change set. An
+ * (app, obj) pair has changed if an entry node has gained or lost both
+ * its <app/app> and <app/for> statements. ModelUpdate indexes these
+ * statements by entry node as it receives them, so we only need to
+ * look up the UUIDs and the current values in the derived graph.
+ *
+ * This will not produce correct results when an App is deleted (or
+ * made not an App). Either this should be disallowed (impractical) or
+ * it will need special handling.
+ */
+class ConfigChanges
+{
+    private ModelUpdate changes;
+    private Model derived;
+
+    private ConfigChanges (ModelUpdate changes, Model derived)
+    {
+        this.changes = changes;
+        this.derived = derived;
+    }
+
+    /* TXN */
+    public static List<Update.Config> extract (ModelUpdate changes, Model derived)
+    {
+        return new ConfigChanges(changes, derived).extract();
+    }
+
+    private List<Update.Config> extract ()
+    {
+        /* An entry may be removed and replaced in one change set, so
+         * collapse duplicate pairs. */
+        var pairs = new LinkedHashMap<RDFNode, Set<RDFNode>>();
+        changes.configEntries().values().forEach(stmts -> {
+            collect(pairs, stmts, changes.added());
+            collect(pairs, stmts, changes.removed());
+        });
+
+        return Iterator.ofAll(pairs.entrySet())
+            .flatMap(e -> Iterator.ofAll(e.getValue())
+                .flatMap(obj -> resolve(e.getKey(), obj)))
+            .toList();
+    }
+
+    private static void collect (Map<RDFNode, Set<RDFNode>> pairs,
+        Set<Statement> stmts, Set<Statement> graph)
+    {
+        var present = Iterator.ofAll(stmts)
+            .filter(graph::contains)
+            .toList();
+        var apps = present.filter(s -> s.getPredicate().equals(Vocab.App.app));
+        var objs = present.filter(s -> s.getPredicate().equals(Vocab.App.forP));
+
+        for (var a : apps)
+            for (var o : objs)
+                pairs.computeIfAbsent(a.getObject(), k -> new LinkedHashSet<>())
+                    .add(o.getObject());
+    }
+
+    private Option<Update.Config> resolve (RDFNode appN, RDFNode objN)
+    {
+        if (!appN.isResource() || !objN.isResource())
+            return Option.none();
+        var app = appN.asResource();
+        var obj = objN.asResource();
+
+        /* We can't handle deleting Apps yet */
+        if (!derived.contains(app, RDF.type, Vocab.App.Application))
+            return Option.none();
+
+        /* …but we must search for the obj in the removed statements */
+        var appU = uuidOf(app);
+        var objU = uuidOf(obj).orElse(() -> removedUuidOf(obj));
+
+        /* We must select out the current value from the derived graph.
+         * We don't know what order the changes happened in so we don't
+         * know which happened last. */
+        return appU.flatMap(a -> objU.map(o ->
+            new Update.Config(changes.seq(), a, o, currentValue(app, obj))));
+    }
+
+    private Option<UUID> uuidOf (Resource node)
+    {
+        return Option.of(derived.getProperty(node, Vocab.uuid))
+            .flatMap(UuidIndex::decode);
+    }
+
+    private Option<UUID> removedUuidOf (Resource node)
+    {
+        return Iterator.ofAll(changes.removed())
+            .filter(s -> s.getSubject().equals(node)
+                && s.getPredicate().equals(Vocab.uuid))
+            .flatMap(UuidIndex::decode)
+            .headOption();
+    }
+
+    private Option<ConfigEntry.Value> currentValue (Resource app, Resource obj)
+    {
+        return Iterator.ofAll(derived.listSubjectsWithProperty(Vocab.App.forP, obj))
+            .filter(e -> e.hasProperty(Vocab.App.app, app))
+            .flatMap(e -> Option.of(e.getProperty(Vocab.App.value))
+                .flatMap(v -> Option.of(e.getProperty(Vocab.App.etag))
+                    .map(t -> new ConfigEntry.Value(
+                        Util.decodeLiteral(v.getObject(), JsonValue.class),
+                        Util.decodeLiteral(t.getObject(), UUID.class),
+                        Option.none()))))
+            .headOption();
+    }
+}
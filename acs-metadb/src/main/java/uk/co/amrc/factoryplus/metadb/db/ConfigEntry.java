@@ -128,7 +128,7 @@ public class ConfigEntry extends RequestHandler.Component
             removeRawValue();
 
         if (app.equals(Vocab.App.ConfigSchema))
-            db().schemaTracker().updateSchemas(List.empty());
+            db().schemaTracker().updateSchemas(List.of(obj));
     }
 
     public void removeRawValue ()
@@ -140,10 +140,17 @@ public class ConfigEntry extends RequestHandler.Component
     {
         /* XXX check app:appliesTo */
 
+        /* We validate even an unchanged value, as configs stored
+         * before schemas were enforced may not match. The memo makes
+         * this cheap for the repeated writes below. */
         var schemas = db().schemaTracker();
         if (!schemas.validate(app, value))
             throw new RdfErr.BadConfig(value);
 
+        /* Agents and dump loads often write what is already there. */
+        if (getRawValue().contains(value))
+            return;
+
         if (app.equals(Vocab.App.Registration))
             request().objectStructure().updateRegistration(obj, value);
         else if (isStructured())
@@ -15,11 +15,13 @@ import io.reactivex.rxjava3.core.*;
 import io.reactivex.rxjava3.schedulers.Schedulers;
 import io.reactivex.rxjava3.subjects.*;
 
+import io.vavr.Function1;
 import io.vavr.collection.*;
 import io.vavr.control.Option;
 
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.RDFS;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,7 +34,8 @@ public class Dataflow
 
     private RdfStore db;
 
-    private Subject<Dataset> modelUpdates = PublishSubject.create();
+    private Subject<ModelUpdate> modelUpdates = PublishSubject.create();
+    private ChangeLog changeLog = new ChangeLog();
     private Observable<Update.Config> configUpdates = buildConfigUpdates();
 
     public Dataflow (RdfStore db)
@@ -40,61 +43,31 @@ public class Dataflow
         this.db = db;
     }
 
-    public void modelUpdate (Dataset update)
+    /* TXN */
+    public void modelUpdate (ModelUpdate changes)
     {
-        modelUpdates.onNext(update);
+        modelUpdates.onNext(changes);
     }
 
-    /* This will not produce correct results when an App is deleted (or
-     * made not an App). Either this should be disallowed (impractical)
-     * or it will need special handling. */
-    private static final Query Q_appUpdates = Vocab.query("""
-        select ?appU ?objU ?value ?etag
-        where {
-            {   select distinct ?app ?obj
-                where {
-                    { graph <graph/added> { [] <app/app> ?app; <app/for> ?obj. } }
-                    union { graph <graph/removed> { [] <app/app> ?app; <app/for> ?obj. } }
-            } }
-
-            # We can't handle deleting Apps yet
-            graph <graph/derived> { ?app a <app/Application>; <core/uuid> ?appU. }
-
-            # …but we must search for the obj in the removed statements
-            { graph <graph/derived> { ?obj <core/uuid> ?objU. } }
-            union { graph <graph/removed> { ?obj <core/uuid> ?objU. } }
-
-            # We must select out the current value from the derived
-            # graph. We don't know what order the changes happened in so
-            # we don't know which happened last.
-            optional { graph <graph/derived> {
-                []  <app/app> ?app;
-                    <app/for> ?obj;
-                    <app/value> ?value;
-                    <app/etag> ?etag.
-        } } }
-    """);
-
     private Observable<Update.Config> buildConfigUpdates ()
     {
         /* We must start synchronous, inside the txn */
         return modelUpdates
-            .map(ds -> QueryExecution.dataset(ds)
-                .query(Q_appUpdates)
-                .build().execSelect()
-                .materialise())
-            .flatMap(rs -> Observable.<QuerySolution>create(em -> {
-                rs.forEachRemaining(em::onNext);
-                em.onComplete();
-            }))
+            .map(changes -> {
+                var configs = ConfigChanges.extract(changes, db.derived());
+                changeLog.record(changes, configs);
+                return configs;
+            })
+            .flatMapIterable(cs -> cs)
             /* From here we move to the Rx computation threads */
             .observeOn(Schedulers.computation())
-            .map(Update.Config::ofQuerySolution)
             .share();
     }
 
     public Observable<Update.Config> configUpdates () { return configUpdates; }
 
+    public ChangeLog changeLog () { return changeLog; }
+
     private static final Query Q_relation = Vocab.query("""
         select ?classU ?objU
         where {
@@ -120,21 +93,140 @@ public class Dataflow
             .toSet();
     }
 
-    private Observable<Set<UUID>> _buildRelation (Relation.Bound bound)
+    /* Might this change set change the result of this relation? */
+    private boolean _affectsRelation (Relation.Bound bound, ModelUpdate changes)
+    {
+        /* We cannot see untracked changes. A change of UUID changes
+         * the result even if the relation itself is unchanged. */
+        if (!changes.isTracked() || changes.touches(Vocab.uuid))
+            return true;
+        /* Any change to the class structure may change derived
+         * relations anywhere below it. */
+        if (!bound.direct() && changes.touches(RDFS.subClassOf))
+            return true;
+        /* If the object doesn't exist it would need a UUID */
+        var node = db.findObject(bound.uuid());
+        if (node.isEmpty())
+            return false;
+
+        /* For derived memberships of a class we must include the
+         * memberships of its subclasses. The closure is reflexive. */
+        var ends = HashSet.of((RDFNode)node.get());
+        if (bound.asClass() && !bound.direct())
+            ends = ends.addAll(Iterator.ofAll(
+                db.derived().listSubjectsWithProperty(RDFS.subClassOf, node.get())));
+
+        var targets = ends;
+        return changes.statements()
+            .filter(s -> s.getPredicate().equals(bound.prop()))
+            .exists(s -> targets.contains(
+                bound.asClass() ? s.getObject() : s.getSubject()));
+    }
+
+    private Option<UUID> _uuidOf (RDFNode node)
+    {
+        return Option.of(node)
+            .filter(RDFNode::isResource)
+            .flatMap(n -> Option.of(db.derived()
+                .getProperty(n.asResource(), Vocab.uuid)))
+            .flatMap(UuidIndex::decode);
+    }
+
+    /* Apply a change set to a direct relation. This is only valid when
+     * the changes are tracked and touch no UUIDs; otherwise the other
+     * ends of the changed statements may not map to the UUIDs the
+     * query would have found. */
+    private Set<UUID> _applyRelation (Relation.Bound bound, Set<UUID> current,
+        ModelUpdate changes)
+    {
+        var node = db.findObject(bound.uuid()).get();
+        Function1<Statement, Option<UUID>> other = s -> {
+            if (!s.getPredicate().equals(bound.prop()))
+                return Option.none();
+            var self = bound.asClass() ? s.getObject() : s.getSubject();
+            if (!self.equals(node))
+                return Option.none();
+            return _uuidOf(bound.asClass() ? s.getSubject() : s.getObject());
+        };
+
+        return current
+            .removeAll(Iterator.ofAll(changes.removed()).flatMap(other))
+            .addAll(Iterator.ofAll(changes.added()).flatMap(other));
+    }
+
+    /* TXN */
+    private Set<UUID> _updateRelation (Relation.Bound bound, Set<UUID> current,
+        ModelUpdate changes)
     {
-        /* This is synchronous and comes from an update txn */
-        var updates =  modelUpdates
-            /* For now requery every time. In principal we could filter
-             * by rank of class changed to limit the churn. */
-            .map(upd -> _fetchRelation(bound));
+        if (!_affectsRelation(bound, changes))
+            return current;
+
+        /* Derived relations depend on the class structure, so we
+         * requery them. */
+        if (bound.direct() && changes.isTracked() && !changes.touches(Vocab.uuid))
+            return _applyRelation(bound, current, changes);
+        return _fetchRelation(bound);
+    }
+
+    /* The state of one relation subscription. We subscribe to model
+     * updates before making the initial query so that no change can
+     * fall between the two. Changes which arrive before the query has
+     * finished are held and then applied to its result. The query may
+     * already include some of them; applying a change again is
+     * harmless, as applying changes in commit order always ends with
+     * the current value. */
+    private class RelationState
+    {
+        private Relation.Bound bound;
+        private ObservableEmitter<Set<UUID>> out;
+        private List<ModelUpdate> held = List.empty();
+        private boolean ready = false;
+        private Set<UUID> current;
+
+        RelationState (Relation.Bound bound, ObservableEmitter<Set<UUID>> out)
+        {
+            this.bound = bound;
+            this.out = out;
+        }
+
+        /* TXN. Updates pass down within an update txn. This is
+         * synchronous; we only touch the TDB when the change set may
+         * affect this relation. */
+        synchronized void update (ModelUpdate changes)
+        {
+            if (!ready) {
+                held = held.append(changes);
+                return;
+            }
+            current = _updateRelation(bound, current, changes);
+            out.onNext(current);
+        }
+
+        void start ()
+        {
+            var init = db.calculateRead(() -> _fetchRelation(bound));
+
+            /* This blocks the change feed until we have caught up. */
+            synchronized (this) {
+                current = db.calculateRead(() -> held.foldLeft(init,
+                    (st, ch) -> _updateRelation(bound, st, ch)));
+                held = List.empty();
+                ready = true;
+                out.onNext(current);
+            }
+        }
+    }
 
-        return Single.fromCallable(() ->
-                db.calculateRead(() -> _fetchRelation(bound)))
+    private Observable<Set<UUID>> _buildRelation (Relation.Bound bound)
+    {
+        return Observable.<Set<UUID>>create(out -> {
+                var state = new RelationState(bound, out);
+                out.setDisposable(
+                    modelUpdates.subscribe(state::update, out::onError));
+                state.start();
+            })
             /* Make the initial query on the Rx io sched */
             .subscribeOn(Schedulers.io())
-            /* Subsequent updates will pass down within an update txn */
-            .toObservable()
-            .concatWith(updates)
             /* Move to computation sched */
             .observeOn(Schedulers.computation())
             .distinctUntilChanged();
@@ -151,6 +243,32 @@ public class Dataflow
             .filter(u -> u.app().equals(app));
     }
 
+    /** Config updates for an app after a ChangeLog cursor.
+     * These are the changes still in the log followed by live
+     * changes. Returns None if the log does not reach back far enough.
+     */
+    public Option<Observable<Update.Config>> appUpdatesSince (
+        UUID app, String cursor)
+    {
+        return changeLog.parse(cursor)
+            .filter(changeLog::covers)
+            .map(seq -> Observable.defer(() -> {
+                /* Subscribe to live changes before reading the log so
+                 * we can't miss any. Changes already in the log will
+                 * arrive again and must be dropped. */
+                var live = UnicastSubject.<Update.Config>create();
+                var sub = appUpdates(app).subscribe(
+                    live::onNext, live::onError, live::onComplete);
+
+                return changeLog.since(seq, app)
+                    .map(missed -> Observable.fromIterable(missed._1())
+                        .concatWith(live.filter(u -> u.seq() > missed._2())))
+                    .getOrElse(() -> Observable.error(new IllegalStateException(
+                        "Change log no longer reaches " + cursor)))
+                    .doFinally(sub::dispose);
+            }));
+    }
+
     /* XXX These find-entry queries have a lot of duplication. I'm not
      * sure how best to avoid that; I don't really want to fall back to
      * iterating over a list all the time. */
@@ -166,7 +284,7 @@ public class Dataflow
         }
     """);
 
-    private Map<UUID, ConfigEntry.Value> appState (UUID app)
+    public Map<UUID, ConfigEntry.Value> appState (UUID app)
     {
         /* This method is not triggered by an Update, so it must use its
          * own transaction. */
@@ -7,7 +7,9 @@
 /* XXX Should this be in api? */
 package uk.co.amrc.factoryplus.metadb.db;
 
+import java.util.ServiceConfigurationError;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
 import jakarta.json.*;
@@ -16,6 +18,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.reactivex.rxjava3.core.*;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.vavr.Tuple;
 import io.vavr.collection.*;
 import io.vavr.control.*;
 
@@ -43,11 +47,41 @@ public class MetaDBNotify
             .watch("v2/app/{app}/object/{object}", this::configWatch)
             .watch("v2/class/{class}/{relation}/", this::classRelation)
             .watch("v2/class/{class}/direct/{relation}/", this::classDirectRelation)
+            .watch("v2/object/{object}/{relation}/", this::objectRelation)
+            .watch("v2/object/{object}/direct/{relation}/", this::objectDirectRelation)
+            .compression(compressionConfig(db.fplus()))
             .build();
+
+        var metrics = db.metrics();
+        metrics.gauge("notify.sessions", notify::sessions);
+        metrics.gauge("notify.queued", notify::queuedMessages);
+        metrics.gauge("notify.queued_bytes", notify::queuedBytes);
+        metrics.gauge("notify.max_queued_bytes", notify::maxQueuedBytes);
+        metrics.gauge("notify.conflated", notify::conflated);
+        metrics.gauge("notify.rate_emitted", notify::rateEmitted);
+        metrics.gauge("notify.rate_coalesced", notify::rateCoalesced);
     }
 
     public NotifyV2 notifyV2 () { return notify; }
 
+    /* NOTIFY_DEFLATE_LEVEL is a zlib level, 0 to disable compression.
+     * NOTIFY_DEFLATE_TAKEOVER=false compresses each message alone. */
+    private static NotifyV2.Compression compressionConfig (FPServiceClient fplus)
+    {
+        var def = NotifyV2.Compression.DEFAULT;
+        var level = fplus.getOptionConf("notify_deflate_level")
+            .map(Integer::parseInt)
+            .getOrElse(def.level());
+        var takeover = fplus.getOptionConf("notify_deflate_takeover")
+            .map(Boolean::parseBoolean)
+            .getOrElse(def.contextTakeover());
+
+        if (level < -1 || level > 9)
+            throw new ServiceConfigurationError(
+                "Invalid NOTIFY_DEFLATE_LEVEL: " + level);
+        return new NotifyV2.Compression(level, takeover);
+    }
+
     private static <U> Response<JsonValue> setUpdate (Response<Set<U>> src)
     {
         return src
@@ -84,7 +118,7 @@ public class MetaDBNotify
             UUID uuid, String rarg, boolean asClass, boolean direct)
         {
             return args.get(rarg)
-                .flatMap(Relation::find)
+                .flatMap(n -> asClass ? Relation.find(n) : Relation.findInverse(n))
                 .map(r -> r.bind(uuid, asClass, direct));
         }
         
@@ -116,15 +150,89 @@ public class MetaDBNotify
             .map(MetaDBNotify::setUpdate);
     }
 
-    private Observable<SearchUpdate> appSearch (Session sess, Map<String, String> args)
+    /* Each change is preceded by the cursor to resume from once the
+     * client has seen it. */
+    private List<SearchUpdate> changeUpdates (Update.Config u)
     {
-        log.info("appSearch: {}", args);
-        return new SubHandler(sess, args)
-            .fromUUID("app", data::appValues, Vocab.Perm.ReadApp)
-            .map(r -> r.map(cs -> cs
-                .mapKeys(UUID::toString)
-                .mapValues(v -> v.toResponse())))
-            .map(SearchUpdate::ofResponse);
+        return List.of(
+            SearchUpdate.seq(data.changeLog().cursor(u.seq())),
+            SearchUpdate.child(u.obj().toString(),
+                u.value()
+                    .map(v -> v.toResponse())
+                    .getOrElse(Response::empty)));
+    }
+
+    /* This sends the full state of the app once and then a child
+     * update for each change, rather than diffing the whole of
+     * appValues every time. We take the cursor before reading the
+     * state and follow the changes from there, so changes committed
+     * during the read are not missed, though they may be sent twice. */
+    private Observable<SearchUpdate> appChanges (UUID app)
+    {
+        return Single.fromCallable(() ->
+                Tuple.of(data.changeLog().current(), data.appState(app)))
+            .subscribeOn(Schedulers.io())
+            .flatMapObservable(snap -> Observable.just(
+                    SearchUpdate.seq(snap._1()),
+                    SearchUpdate.full(snap._2()
+                        .mapKeys(UUID::toString)
+                        .mapValues(v -> v.toResponse())))
+                .concatWith(data.appUpdatesSince(app, snap._1())
+                    .getOrElse(() -> data.appUpdates(app))
+                    .concatMapIterable(this::changeUpdates)));
+    }
+
+    /* A client which has reconnected can resume from its last cursor
+     * and be sent only the changes it missed. We can only resume once:
+     * if the ACL is revoked and granted again we send a full update. */
+    private Observable<SearchUpdate> appChanges (UUID app, Option<String> since)
+    {
+        var resume = new AtomicReference<>(since);
+        return Observable.defer(() -> resume.getAndSet(Option.none())
+            .flatMap(c -> data.appUpdatesSince(app, c)
+                .map(ups -> Observable.just(
+                        SearchUpdate.seq(c), SearchUpdate.resumed())
+                    .concatWith(ups.concatMapIterable(this::changeUpdates))))
+            .getOrElse(() -> appChanges(app)));
+    }
+
+    /* As well as the generic filters we accept a `class` key, which
+     * selects only objects which are members of that class, and a
+     * `since` cursor to resume from. We don't resume class searches as
+     * SearchView needs a full update to apply membership changes. */
+    private Observable<SearchUpdate> appSearch (Session sess,
+        Map<String, String> args, SearchFilter filter)
+    {
+        log.info("appSearch: {} {}", args, filter.request());
+        var klass = filter.param("class").map(Decoders::parseUUID);
+        if (klass.exists(Option::isEmpty))
+            return Observable.just(SearchUpdate.invalid());
+
+        var since = filter.param("since").filter(c -> klass.isEmpty());
+
+        return new SubHandler(sess, args).findUUID("app")
+            .map(app -> sess.switchACL(Vocab.Perm.ReadApp, app,
+                    appChanges(app, since))
+                .map(r -> r.ifOK(u -> u,
+                    SearchUpdate::notFound, SearchUpdate.Empty::new)))
+            .map(updates -> klass.flatMap(k -> k)
+                .map(k -> SearchUpdate.selectedBy(updates,
+                    classSelection(sess, k)))
+                .getOrElse(updates))
+            .getOrElse(() -> Observable.just(SearchUpdate.invalid()));
+    }
+
+    /* The members of a class, as a SEARCH selection. If we may not
+     * read the members we select nothing. */
+    private Observable<SearchUpdate> classSelection (Session sess, UUID klass)
+    {
+        var bound = Relation.of("member").bind(klass, true, false);
+        return data.relation(bound)
+            .compose(sess.applyACL(bound.perm(), bound.uuid()))
+            .map(r -> r.ifOK(
+                s -> s.map(UUID::toString),
+                () -> HashSet.<String>empty()))
+            .map(SearchUpdate::select);
     }
 
     private Observable<Response<JsonValue>> configWatch (
@@ -156,4 +264,23 @@ public class MetaDBNotify
         return new SubHandler(sess, args)
             .fromRelation("class", "relation", true, true, data::relation);
     }
+
+    /* The object end of the relations, e.g. the classes an object is
+     * a member of. One of these replaces watching every candidate
+     * class. */
+    private Observable<Response<JsonValue>> objectRelation (
+        Session sess, Map<String, String> args)
+    {
+        log.info("objectRelation: {}", args);
+        return new SubHandler(sess, args)
+            .fromRelation("object", "relation", false, false, data::relation);
+    }
+
+    private Observable<Response<JsonValue>> objectDirectRelation (
+        Session sess, Map<String, String> args)
+    {
+        log.info("objectDirectRelation: {}", args);
+        return new SubHandler(sess, args)
+            .fromRelation("object", "relation", false, true, data::relation);
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Factory+ metadata database
+ * Internal metrics
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import jakarta.json.*;
+
+/* A minimal set of named counters and gauges. We don't have a metrics
+ * system to report these to, so for now they are just available over
+ * HTTP for debugging. Names are dotted, component first. */
+public class Metrics
+{
+    private Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public LongAdder counter (String name)
+    {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public void increment (String name)
+    {
+        counter(name).increment();
+    }
+
+    public void gauge (String name, LongSupplier value)
+    {
+        gauges.put(name, value);
+    }
+
+    public JsonObject toJson ()
+    {
+        var builder = Json.createObjectBuilder();
+        counters.forEach((n, c) -> builder.add(n, c.sum()));
+        gauges.forEach((n, g) -> builder.add(n, g.getAsLong()));
+        return builder.build();
+    }
+}
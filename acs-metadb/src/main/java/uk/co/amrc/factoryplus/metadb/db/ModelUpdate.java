@@ -6,8 +6,14 @@
 
 package uk.co.amrc.factoryplus.metadb.db;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+
+import io.vavr.collection.Iterator;
+import io.vavr.control.Option;
 
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.listeners.StatementListener;
@@ -35,14 +41,68 @@ public class ModelUpdate extends StatementListener
     private Set<Statement> added    = new HashSet<>();
     private Set<Statement> removed  = new HashSet<>();
 
+    /* Some operations (clearing a whole graph, for instance) bypass
+     * the per-statement listener callbacks. Code performing these must
+     * mark the update as untracked, and consumers of the change set
+     * must then fall back to examining the whole database. */
+    private boolean tracked = true;
+
+    /* Changes to <core/uuid>, so that object lookups within the txn can
+     * see objects which have not been committed yet. A None value
+     * records a removal. */
+    private Map<UUID, Option<Resource>> uuids = new HashMap<>();
+
+    /* Changes to class memberships and the class structure, so we know
+     * when cached ranks cannot be used within the txn. */
+    private Set<Resource> retyped = new HashSet<>();
+    private boolean reclassed = false;
+    private boolean reranked = false;
+
+    /* The <app/app> and <app/for> statements touched, indexed by
+     * config entry node. See ConfigChanges. */
+    private Map<Resource, Set<Statement>> entries = new HashMap<>();
+
+    /* The change set number, assigned by ChangeFeed on commit */
+    private long seq = 0;
+
+    public Set<Statement> added () { return added; }
+    public Set<Statement> removed () { return removed; }
+
+    public boolean isTracked () { return tracked; }
+    public void untracked () { tracked = false; }
+
+    public long seq () { return seq; }
+    void committed (long seq) { this.seq = seq; }
+
+    public int size () { return added.size() + removed.size(); }
+
+    public Iterator<Statement> statements ()
+    {
+        return Iterator.concat(added, removed);
+    }
+
+    /** The subjects of all statements added or removed. */
+    public Set<Resource> subjects ()
+    {
+        return statements()
+            .map(Statement::getSubject)
+            .toJavaSet();
+    }
+
+    /** Does this update touch any statement with this predicate? */
+    public boolean touches (Property pred)
+    {
+        return statements()
+            .exists(s -> s.getPredicate().equals(pred));
+    }
+
     public Dataset dataset (Model derived)
     {
-        /* This is nice and neat and allows us to query the updates
-         * alongside the existing data. However I'm not entirely sure
-         * it's valid; it may be the cause of the
-         * ConcurrentModificationExceptions described in
-         * RdfStore::listQuery. It may be necessary to handle this some
-         * other way. */
+        /* This allows us to query the updates alongside the existing
+         * data. The added and removed graphs are frozen copies of the
+         * change set, and derived must be read inside a read txn, so
+         * this is a consistent snapshot provided derived is backed by
+         * the TDB (see RdfStore::retrying). */
         var ds = DatasetFactory.create(derived);
         ds.addNamedModel(Vocab.G_derived, derived);
         ds.addNamedModel(Vocab.G_added, toModel(added));
@@ -50,6 +110,39 @@ public class ModelUpdate extends StatementListener
         return ds;
     }
 
+    /** Look up a UUID in the changes made so far.
+     * Returns None if this UUID has not been touched, and Some(None) if
+     * it has been removed. */
+    public Option<Option<Resource>> findUUID (UUID uuid)
+    {
+        return Option.of(uuids.get(uuid));
+    }
+
+    /** The config entry nodes which may have changed, with their
+     * <app/app> and <app/for> statements which were touched. */
+    public Map<Resource, Set<Statement>> configEntries () { return entries; }
+
+    /** Might this update have changed the rank of this object? */
+    public boolean changesRank (Resource obj)
+    {
+        return reclassed || reranked || retyped.contains(obj);
+    }
+
+    /** Have any <core/rank> statements changed? */
+    public boolean changesRankClasses ()
+    {
+        return reranked;
+    }
+
+    /** Fold a later set of changes into this one. */
+    public void merge (ModelUpdate other)
+    {
+        other.removed.forEach(this::removedStatement);
+        other.added.forEach(this::addedStatement);
+        if (!other.tracked)
+            tracked = false;
+    }
+
     private static Model toModel (Set<Statement> s)
     {
         return new StmtIteratorImpl(s.iterator())
@@ -61,6 +154,7 @@ public class ModelUpdate extends StatementListener
         //log.info("ADDED\n  {}", stmt);
         added.add(stmt);
         removed.remove(stmt);
+        index(stmt, Option.some(stmt.getSubject()));
     }
     
     public void removedStatement (Statement stmt)
@@ -68,6 +162,25 @@ public class ModelUpdate extends StatementListener
         //log.info("REMOVED\n  {}", stmt);
         removed.add(stmt);
         added.remove(stmt);
+        index(stmt, Option.none());
+    }
+
+    private void index (Statement stmt, Option<Resource> uuidTarget)
+    {
+        var pred = stmt.getPredicate();
+
+        if (pred.equals(Vocab.uuid))
+            UuidIndex.decode(stmt)
+                .peek(u -> uuids.put(u, uuidTarget));
+        if (pred.equals(RDF.type))
+            retyped.add(stmt.getSubject());
+        if (pred.equals(RDFS.subClassOf))
+            reclassed = true;
+        if (pred.equals(Vocab.rank))
+            reranked = true;
+        if (pred.equals(Vocab.App.app) || pred.equals(Vocab.App.forP))
+            entries.computeIfAbsent(stmt.getSubject(), s -> new HashSet<>())
+                .add(stmt);
     }
 }
 
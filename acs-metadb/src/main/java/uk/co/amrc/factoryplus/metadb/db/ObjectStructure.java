@@ -302,6 +302,25 @@ public class ObjectStructure extends RequestHandler.Component
             .toList();
     }
 
+    /* The object end of a relation: the classes an object is a member
+     * or subclass of. The permissions are those used for notify. */
+    public List<String> listObjectRelation (boolean direct, UUID uuid, String relation)
+    {
+        var bound = Relation.ofInverse(relation).bind(uuid, false, direct);
+        var graph = direct ? db().direct() : db().derived();
+
+        request().checkACL(bound.perm(), uuid);
+
+        var obj = db().findObjectOrError(uuid);
+        return graph
+            .listObjectsOfProperty(obj, bound.prop())
+            .filterKeep(n -> n.isResource())
+            .mapWith(n -> n.asResource().getProperty(Vocab.uuid))
+            .filterKeep(s -> s != null)
+            .mapWith(s -> s.getString())
+            .toList();
+    }
+
     public boolean testRelation (boolean direct, UUID klass, String relation, UUID object)
     {
         var rel = Relation.of(relation);
@@ -0,0 +1,65 @@
+/*
+ * Factory+ metadata database
+ * Precompiled SELECT queries
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.List;
+
+import org.apache.jena.query.*;
+import org.apache.jena.sparql.algebra.*;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.engine.*;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingRoot;
+import org.apache.jena.sparql.util.Context;
+
+/* Executing a Query with substitutions makes Jena rewrite the query
+ * syntax, compile it to algebra and optimise it every time. Our
+ * queries are static, so we compile and optimise them once and
+ * substitute the bindings into the algebra at execution time. This
+ * must reach FILTER and BIND expressions as well as the patterns;
+ * Substitute.inject does not, so a variable used only in a filter
+ * would be left unbound. The bindings are also passed in as the
+ * parent binding, which leaves them in the results as the syntax
+ * substitution path does for projected variables.
+ */
+public class PreparedQuery
+{
+    private List<String>    vars;
+    private Op              op;
+
+    public PreparedQuery (Query query)
+    {
+        if (!query.isSelectType())
+            throw new IllegalArgumentException("Only SELECT queries can be prepared");
+
+        vars    = query.getResultVars();
+        op      = Algebra.optimize(Algebra.compile(query));
+    }
+
+    /* TXN */
+    public ResultSet execSelect (Dataset dataset, Binding bindings)
+    {
+        var iter = eval(op, dataset.asDatasetGraph(), bindings);
+        return ResultSetStream.create(vars, dataset.getDefaultModel(), iter);
+    }
+
+    /** Evaluate already-optimised algebra with some variables bound. */
+    static QueryIterator eval (Op op, DatasetGraph dsg, Binding bindings)
+    {
+        var ctx = Context.setupContextForDataset(ARQ.getContext(), dsg);
+        ctx.set(ARQ.optimization, false);
+
+        if (bindings.isEmpty())
+            bindings = BindingRoot.create();
+        else
+            op = Substitute.substitute(op, bindings);
+        return QueryEngineRegistry.findFactory(op, dsg, ctx)
+            .create(op, dsg, bindings, ctx)
+            .iterator();
+    }
+}
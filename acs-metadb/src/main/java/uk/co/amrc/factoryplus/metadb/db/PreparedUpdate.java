@@ -0,0 +1,125 @@
+/*
+ * Factory+ metadata database
+ * Precompiled SPARQL updates
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.ArrayList;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.*;
+import org.apache.jena.sparql.algebra.*;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.modify.TemplateLib;
+import org.apache.jena.sparql.modify.request.*;
+import org.apache.jena.sparql.syntax.*;
+import org.apache.jena.update.*;
+import org.apache.jena.update.Update;
+
+import io.vavr.collection.Iterator;
+import io.vavr.collection.List;
+import io.vavr.collection.Seq;
+import io.vavr.control.Option;
+
+/* The update equivalent of PreparedQuery. We only handle the forms of
+ * update we actually use, DELETE WHERE and DELETE/INSERT ... WHERE
+ * without USING or WITH. Anything else is not prepared and must be run
+ * through UpdateExecution as before.
+ *
+ * Execution follows Jena's UpdateEngineWorker: each operation finds
+ * all its solutions before deleting and then inserting, and sees the
+ * effects of the operations before it.
+ */
+public class PreparedUpdate
+{
+    private record Step (Op where, java.util.List<Quad> delete, java.util.List<Quad> insert) { }
+
+    private Option<Seq<Step>> steps;
+
+    public PreparedUpdate (UpdateRequest update)
+    {
+        steps = Option.sequence(
+            List.ofAll(update.getOperations()).map(PreparedUpdate::prepare));
+    }
+
+    public boolean isPrepared () { return steps.isDefined(); }
+
+    private static Option<Step> prepare (Update update)
+    {
+        if (update instanceof UpdateDeleteWhere) {
+            var quads = ((UpdateDeleteWhere)update).getQuads();
+            return Option.some(new Step(
+                compile(elementFromQuads(quads)), quads, java.util.List.of()));
+        }
+        if (update instanceof UpdateModify) {
+            var modify = (UpdateModify)update;
+            if (!modify.getUsing().isEmpty() || !modify.getUsingNamed().isEmpty()
+                    || modify.getWithIRI() != null)
+                return Option.none();
+            return Option.some(new Step(
+                compile(modify.getWherePattern()),
+                modify.getDeleteQuads(), modify.getInsertQuads()));
+        }
+        return Option.none();
+    }
+
+    private static Op compile (Element where)
+    {
+        return Algebra.optimize(Algebra.compile(where));
+    }
+
+    /* The same pattern Jena builds for DELETE WHERE */
+    private static Element elementFromQuads (java.util.List<Quad> quads)
+    {
+        var group = new ElementGroup();
+        ElementTriplesBlock block = null;
+        Node graph = null;
+
+        for (var q : quads) {
+            if (block == null || !q.getGraph().equals(graph)) {
+                graph = q.getGraph();
+                block = new ElementTriplesBlock();
+                group.addElement(Quad.isDefaultGraph(graph) ? block
+                    : new ElementNamedGraph(graph, block));
+            }
+            block.addTriple(q.asTriple());
+        }
+        return group;
+    }
+
+    /* TXN */
+    public void execute (Dataset dataset, Binding bindings)
+    {
+        var dsg = dataset.asDatasetGraph();
+
+        for (var step : steps.get()) {
+            /* Find all the solutions before we change anything */
+            var rows = new ArrayList<Binding>();
+            var iter = PreparedQuery.eval(step.where(), dsg, bindings);
+            try {
+                iter.forEachRemaining(rows::add);
+            }
+            finally {
+                iter.close();
+            }
+
+            var deletes = instantiate(step.delete(), rows);
+            var inserts = instantiate(step.insert(), rows);
+            deletes.forEach(dsg::delete);
+            inserts.forEach(dsg::add);
+        }
+    }
+
+    private static List<Quad> instantiate (java.util.List<Quad> template,
+        java.util.List<Binding> rows)
+    {
+        if (template.isEmpty())
+            return List.empty();
+        return Iterator.ofAll(TemplateLib.calcQuads(template, rows.iterator()))
+            .filter(Quad::isConcrete)
+            .toList();
+    }
+}
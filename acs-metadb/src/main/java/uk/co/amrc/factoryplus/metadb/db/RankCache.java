@@ -0,0 +1,94 @@
+/*
+ * Factory+ metadata database
+ * Object rank cache
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.*;
+
+import io.vavr.control.Option;
+
+/* Ranks are needed for every object creation and relation change, and
+ * finding one is a property-path query. But an object's rank can only
+ * change when its class memberships or the ranks of its classes
+ * change, so we cache them here.
+ *
+ * The cache holds committed data only. Entries are only added from
+ * the writer thread, as read txns may be looking at an older snapshot
+ * than the one we have invalidated against. RdfStore must bypass the
+ * cache for objects whose classes have changed in the current txn.
+ */
+public class RankCache
+{
+    private Map<Resource, Integer> ranks = new ConcurrentHashMap<>();
+    /* Rank classes cannot be deleted, so these only need clearing if
+     * something has edited <core/rank> directly. */
+    private Map<Integer, Resource> rankClasses = new ConcurrentHashMap<>();
+
+    public Option<Integer> rank (Resource obj)
+    {
+        return Option.of(ranks.get(obj));
+    }
+
+    public void putRank (Resource obj, int rank)
+    {
+        ranks.put(obj, rank);
+    }
+
+    public Option<Resource> rankClass (int rank)
+    {
+        return Option.of(rankClasses.get(rank));
+    }
+
+    public void putRankClass (int rank, Resource klass)
+    {
+        rankClasses.put(rank, klass);
+    }
+
+    public void clear ()
+    {
+        ranks.clear();
+        rankClasses.clear();
+    }
+
+    /** Invalidate entries affected by a committed txn.
+     * This must be called within a txn. */
+    public void update (ModelUpdate update, Model derived)
+    {
+        if (!update.isTracked()) {
+            clear();
+            return;
+        }
+
+        update.statements().forEach(s -> {
+            var pred = s.getPredicate();
+            var subj = s.getSubject();
+
+            if (pred.equals(RDF.type))
+                ranks.remove(subj);
+
+            /* A change in superclasses may change the rank of every
+             * member of the subclass. */
+            if (pred.equals(RDFS.subClassOf)) {
+                ranks.remove(subj);
+                derived.listResourcesWithProperty(RDF.type, subj)
+                    .forEachRemaining(ranks::remove);
+            }
+
+            /* A class's rank gives the rank of all its members, and
+             * may have moved a rank class. */
+            if (pred.equals(Vocab.rank)) {
+                rankClasses.clear();
+                ranks.remove(subj);
+                derived.listResourcesWithProperty(RDF.type, subj)
+                    .forEachRemaining(ranks::remove);
+            }
+        });
+    }
+}
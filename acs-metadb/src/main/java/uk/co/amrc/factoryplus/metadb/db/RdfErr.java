@@ -66,6 +66,15 @@ public final class RdfErr
             obj.add("config", config);
         }
     }
+    public static class BadMapping extends SvcErr.BadInput
+    {
+        public BadMapping (String msg) { super(msg); }
+    }
+    public static class Busy extends SvcErr.Client
+    {
+        public Busy (String msg) { super(msg); }
+        public int statusCode () { return 503; }
+    }
     public static class UUIDNotFound extends SvcErr.NotFound
     {
         private UUID uuid;
@@ -9,8 +9,14 @@ package uk.co.amrc.factoryplus.metadb.db;
 import java.time.Instant;
 import java.util.ConcurrentModificationException;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -22,6 +28,9 @@ import org.apache.jena.datatypes.xsd.XSDDatatype;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
 import org.apache.jena.riot.*;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
 import org.apache.jena.tdb2.TDB2Factory;
 import org.apache.jena.update.*;
 import org.apache.jena.vocabulary.*;
@@ -29,6 +38,9 @@ import org.apache.jena.vocabulary.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.reactivex.rxjava3.core.*;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
 import io.vavr.collection.Iterator;
 import io.vavr.collection.List;
 import io.vavr.control.Option;
@@ -45,9 +57,17 @@ public class RdfStore
 {
     private static final Logger log = LoggerFactory.getLogger(RdfStore.class);
 
+    private static final int MAX_QUERY_RETRIES = 5;
+
+    /* Default limits for async reads. Requests beyond these are
+     * refused with a 503 rather than queued indefinitely. */
+    private static final int READ_QUEUE = 256;
+
     private Model       direct;
-    private InfModel    derived;
+    private Model       derived;
     private Dataset     dataset;
+    private TypeClosure closure;
+    private boolean     materialised;
 
     private FPServiceClient fplus;
     private AuthProvider    auth;
@@ -55,6 +75,17 @@ public class RdfStore
     private MetaDBNotify    metaNotify;
     private AppMapper       appMapper;
     private SchemaTracker   schemaTracker;
+    private WriteQueue      writeQueue;
+    private ChangeFeed      changeFeed;
+    private UuidIndex       uuidIndex;
+    private RankCache       rankCache;
+    private Metrics         metrics;
+
+    private Scheduler       readScheduler;
+    private Semaphore       readSlots;
+
+    private Map<Query, PreparedQuery> preparedQueries = new ConcurrentHashMap<>();
+    private Map<UpdateRequest, PreparedUpdate> preparedUpdates = new ConcurrentHashMap<>();
 
     /* We build a Dataset out of these named graphs:
      * - G_direct: this is G_direct from the TDB.
@@ -62,12 +93,36 @@ public class RdfStore
      * - default: this is equal to G_derived.
      * Potentially we could add a <graph/core> to hold the definitions
      * from the core TTL, and make them read-only.
+     *
+     * RDF_INFERENCE selects how G_derived is computed. In the default
+     * `materialised` mode it is G_direct plus the type and subclass
+     * closure held in G_closure in the TDB, which is maintained by a
+     * listener; every read sees a consistent TDB2 snapshot. In `rdfs`
+     * mode it is a Jena RDFS InfModel, whose in-memory deductions are
+     * shared between txns.
      */
     public RdfStore (FPServiceClient fplus, AuthProvider auth, String data)
     {
         var tdb     = TDB2Factory.connectDataset(data);
         direct      = tdb.getNamedModel(Vocab.G_direct);
-        derived     = ModelFactory.createRDFSModel(direct);
+        closure     = new TypeClosure(direct, tdb.getNamedModel(Vocab.G_closure));
+
+        var mode = fplus.getOptionConf("rdf_inference").getOrElse("materialised");
+        switch (mode) {
+            case "rdfs" -> {
+                materialised = false;
+                derived = ModelFactory.createRDFSModel(direct);
+            }
+            case "materialised" -> {
+                materialised = true;
+                derived = closure.derived();
+                direct.register(closure);
+            }
+            default -> throw new ServiceConfigurationError(
+                "Unknown RDF_INFERENCE mode: " + mode);
+        }
+        log.info("Using {} inference", mode);
+
         dataset     = DatasetFactory.create(derived);
 
         dataset.addNamedModel(Vocab.G_direct, direct);
@@ -75,15 +130,49 @@ public class RdfStore
 
         this.fplus      = fplus;
         this.auth       = auth;
+        metrics         = new Metrics();
         dataflow        = new Dataflow(this);
         metaNotify      = new MetaDBNotify(this);
         appMapper       = new AppMapper(this);
         schemaTracker   = new SchemaTracker(this);
+        writeQueue      = new WriteQueue(this);
+        changeFeed      = new ChangeFeed(this);
+        uuidIndex       = new UuidIndex();
+        rankCache       = new RankCache();
+
+        createReadPool();
+    }
+
+    /* Async reads run on a fixed pool with a bounded queue. The
+     * semaphore counts every read running or queued, so we can refuse
+     * a read up front instead of having the executor reject it; Rx
+     * would report a rejection to the global error handler and never
+     * complete the Single. */
+    private void createReadPool ()
+    {
+        int threads = fplus.getOptionConf("read_threads")
+            .map(Integer::parseInt)
+            .getOrElse(Runtime.getRuntime().availableProcessors() * 2);
+        int queue = fplus.getOptionConf("read_queue")
+            .map(Integer::parseInt)
+            .getOrElse(READ_QUEUE);
+        log.info("Using {} async read threads, queue {}", threads, queue);
+
+        var count = new AtomicInteger();
+        var pool = new ThreadPoolExecutor(threads, threads,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queue),
+            r -> {
+                var t = new Thread(r, "rdf-reader-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        readScheduler = Schedulers.from(pool);
+        readSlots = new Semaphore(threads + queue);
     }
 
     public Dataset dataset () { return dataset; }
     public Model direct () { return direct; }
-    public InfModel derived () { return derived; }
+    public Model derived () { return derived; }
 
     /* XXX I think I should be able to use jakarta.inject to handle
      * these rather than explicitly fetching them all from this object. */
@@ -93,14 +182,19 @@ public class RdfStore
     public MetaDBNotify metaNotify () { return metaNotify; }
     public AppMapper appMapper () { return appMapper; }
     public SchemaTracker schemaTracker () { return schemaTracker; }
+    public Metrics metrics () { return metrics; }
+    public ChangeFeed changeFeed () { return changeFeed; }
 
     public void start ()
     {
         bootstrap();
         executeRead(this::validateZFC);
+        executeRead(() -> uuidIndex.rebuild(direct));
 
         dataflow.start();
         schemaTracker.start();
+        changeFeed.start();
+        writeQueue.start();
     }
 
     //private ConcurrentHashMap<String, Boolean> _txnrw = new ConcurrentHashMap<>();
@@ -195,94 +289,135 @@ public class RdfStore
         log.info("requestWrite: needClientUUID {}", needClientUUID);
         if (needClientUUID)
             req.fetchClientUUID();
-        var listener = new ModelUpdate();
-        T rv;
 
-        try {
-            _txnlog("BEGIN", true, true);
-            dataset.begin(ReadWrite.WRITE);
-            direct.register(listener);
-            rv = cb.apply(req);
-            /* This updates all structured entries by iteration over
-             * the domains. This could be optimised by using the
-             * change-notify information collected up to this point. */
-            req.appUpdater().update();
-            _txnlog("COMMIT", false, true);
-            dataset.commit();
-        }
-        catch (Throwable e) {
-            dataset.abort();
-            _txnlog("ABORT", false, true);
-            throw e;
-        }
-        finally {
-            direct.unregister(listener);
-            dataset.end();
-        }
+        /* The WriteQueue runs the request inside a shared txn with a
+         * ModelUpdate listener registered, and then calls
+         * publishUpdate. */
+        return writeQueue.submit(req, cb);
+    }
 
-        var update = listener.dataset(derived);
-        /* It is important that all dataflow processing that queries the
-         * update dataset happens syncronously. Otherwise it won't be in
-         * this transaction. The transaction is on our own Dataset,
-         * even though we will also be querying the update Dataset; this
-         * is important as Jena does not handle transactions via
-         * multiple Datasets referencing the same TDB correctly. */
-        executeRead(() -> {
-            dataflow.modelUpdate(update);
-        });
+    /* Non-blocking versions of the above for the async resources. The
+     * security context is resolved and the ACL fetched before we touch
+     * the TDB, as with the blocking versions. Reads then run on the
+     * bounded read pool, and fail with a 503 if it is full; writes are
+     * handed to the WriteQueue, and the result is delivered from the
+     * writer thread after commit. The callback must not return null. */
+    public <T> Single<T> requestReadAsync (
+        Single<? extends SecurityContext> ctx, Function<RequestHandler, T> cb)
+    {
+        return ctx
+            .flatMap(c -> new RequestHandler(this, c).fetchACLAsync())
+            .flatMap(req -> {
+                if (!readSlots.tryAcquire())
+                    return Single.error(new RdfErr.Busy("Too many reads queued"));
+                return Single.fromCallable(() -> calculateRead(() -> cb.apply(req)))
+                    .subscribeOn(readScheduler)
+                    .doFinally(readSlots::release);
+            });
+    }
+    public <T> Single<T> requestWriteAsync (
+        Single<? extends SecurityContext> ctx, boolean needClientUUID,
+        Function<RequestHandler, T> cb)
+    {
+        return ctx
+            .flatMap(c -> new RequestHandler(this, c).fetchACLAsync())
+            .flatMap(req -> needClientUUID
+                ? req.fetchClientUUIDAsync() : Single.just(req))
+            .flatMap(req -> Single.fromCompletionStage(
+                writeQueue.submitAsync(req, cb)));
+    }
+    public Completable requestExecuteAsync (
+        Single<? extends SecurityContext> ctx, boolean needClientUUID,
+        Consumer<RequestHandler> cb)
+    {
+        return requestWriteAsync(ctx, needClientUUID,
+                req -> { cb.accept(req); return 1; })
+            .ignoreElement();
+    }
 
-        return rv;
+    /* Called by the WriteQueue after commit with the merged changes
+     * from all the requests in the txn. */
+    void publishUpdate (ModelUpdate listener)
+    {
+        if (listener.isTracked())
+            uuidIndex.update(listener);
+        else
+            executeRead(() -> uuidIndex.rebuild(direct));
+        executeRead(() -> rankCache.update(listener, derived));
+
+        /* The indexes above must be current before the next write, but
+         * the dataflow only drives notifications so it runs after the
+         * requests have returned. */
+        changeFeed.publish(listener);
     }
 
-    /* This has been made private because of the exceptions detailed
-     * below. Use listQuery instead. */
-    private ResultSet selectQuery (Query query, Object... substs)
+    private static Binding substBinding (Object... substs)
     {
-        var exec = QueryExecution.dataset(dataset)
-            .query(query);
+        var builder = BindingFactory.builder();
         Iterator.of(substs)
             .grouped(2)
-            .forEach(sq -> exec.substitution((String)sq.get(0), (RDFNode)sq.get(1)));
-        return exec.build()
-            .execSelect();
+            .forEach(sq -> builder.add(
+                Var.alloc((String)sq.get(0)), ((RDFNode)sq.get(1)).asNode()));
+        return builder.build();
+    }
+
+    /* This has been made private because of the exceptions detailed
+     * below. Use listQuery instead. The queries passed in are the
+     * static queries from the db classes, so we compile each of them
+     * once and keep it. */
+    private ResultSet selectQuery (Query query, Object... substs)
+    {
+        return preparedQueries
+            .computeIfAbsent(query, PreparedQuery::new)
+            .execSelect(dataset, substBinding(substs));
     }
 
     public Option<QuerySolution> optionalQuery (Query query, Object... substs)
     {
-        return Util.single(selectQuery(query, substs));
+        return retrying(() -> Util.single(selectQuery(query, substs)));
     }
 
     public QuerySolution singleQuery (Query query, Object... substs)
     {
-        return Util.singleOrError(selectQuery(query, substs));
+        return retrying(() -> Util.singleOrError(selectQuery(query, substs)));
     }
 
     public List<QuerySolution> listQuery (Query query, Object... substs)
     {
-        /* I do not understand why, but under reasonably heavy
-         * contention (e.g. service-setup running) this fails
-         * sporadically with a ConcurrentModificationException. I do not
-         * think this can be a problem with the lifetime of the
-         * ResultSet as we are iterating and materialising it
-         * immediately. The exception usually comes from the call to
-         * Dataflow::_fetchRelation on the model updates dataset, so
-         * it's possible that my Dataset manipulation is not valid and
-         * the transactions are not being passed through to TDB2
-         * properly, or that transactions on the two Datasets don't
-         * properly lock each other out. */
-         while (true) {
-             try {
-                 return Iterator.ofAll(selectQuery(query, substs))
-                     .toList();
+        return retrying(() -> Iterator.ofAll(selectQuery(query, substs))
+            .toList());
+    }
+
+    /* In RDFS mode the InfModel keeps its deductions in memory, outside
+     * the TDB txns. Readers share these with each other and with the
+     * write txn, so under contention (e.g. service-setup running)
+     * queries fail sporadically with a ConcurrentModificationException.
+     * In materialised mode every read is against a TDB2 snapshot and
+     * this cannot happen; if it does, we want to know. */
+    private <T> T retrying (Supplier<T> query)
+    {
+        for (int i = 1;; i++) {
+            try {
+                return query.get();
             }
             catch (ConcurrentModificationException e) {
-                log.info("Caught ConcurrentModificationException, retrying…");
+                metrics.increment("query.retries");
+                if (i >= MAX_QUERY_RETRIES)
+                    throw e;
+                log.warn("Caught ConcurrentModificationException, retrying ({})", i);
             }
         }
     }
 
     public void runUpdate (UpdateRequest update, Object... substs)
     {
+        var prepared = preparedUpdates
+            .computeIfAbsent(update, PreparedUpdate::new);
+        if (prepared.isPrepared()) {
+            prepared.execute(dataset, substBinding(substs));
+            return;
+        }
+
         var exec = UpdateExecution.dataset(dataset)
             .update(update);
         Iterator.of(substs)
@@ -318,14 +453,77 @@ public class RdfStore
                     log.info("Loading core schema version {}", coreVer);
                     direct.add(core);
                 });
+
+            /* Building the closure is only needed the first time we
+             * run in materialised mode. When running in RDFS mode we
+             * drop it, as it would be stale if we switched back. */
+            if (!materialised)
+                closure.clear();
+            else if (!closure.isBuilt()) {
+                log.info("Building class structure closure");
+                closure.rebuild();
+            }
         });
-        derived.rebind();
+        if (!materialised)
+            ((InfModel)derived).rebind();
     }
 
+    /** Load RDF into a graph, replacing its contents if asked.
+     * The data must already be in memory: a write request may be run
+     * more than once if another request in its batch fails, so it
+     * cannot read the request body itself. Replacing a graph bypasses
+     * the change listener, so the caller must mark its ModelUpdate
+     * untracked.
+     * TXN */
+    public void loadGraph (Model graph, Model data, boolean replace)
+    {
+        if (replace)
+            graph.removeAll();
+        graph.add(data);
+        /* This refreshes the inferences because we have been poking
+         * around behind its back. Strictly this is only needed when
+         * we load to a graph which is a source for the inference,
+         * but graph load will not be a common operation. */
+        rebind();
+        validateZFC();
+    }
+
+    /** Bring the derived graph up to date after changes made behind
+     * its back, e.g. to the direct graph. The materialised closure
+     * tracks changes to the direct graph itself, and only needs
+     * rebuilding if the txn has made untracked changes.
+     * TXN */
+    public void rebind ()
+    {
+        if (!materialised) {
+            ((InfModel)derived).rebind();
+            return;
+        }
+
+        var untracked = writeQueue.pending(
+                u -> Option.when(!u.isTracked(), u))
+            .isDefined();
+        if (untracked)
+            closure.rebuild();
+    }
+
+    /** Check the class structure after a write.
+     * Within the write queue this only checks what the current request
+     * has changed, if it can; otherwise it checks the whole store.
+     * TXN */
     public void validateZFC ()
     {
         var zfc = new ZFC(this);
-        zfc.validateInvariants();
+        writeQueue.pending(u -> Option.some(u))
+            .peek(zfc::validateUpdate)
+            .onEmpty(zfc::validateInvariants);
+    }
+
+    /** Check the whole class structure, including relation ranks.
+     * TXN */
+    public void validateZFCFull ()
+    {
+        new ZFC(this).validateAll();
     }
 
     /** Find a single resource within the direct graph. */
@@ -345,9 +543,12 @@ public class RdfStore
             derived.removeAll(null, node.as(Property.class), null);
     }
 
+    /* Uncommitted changes from the current write txn take priority
+     * over the committed index. */
     public Option<Resource> findObject (UUID uuid)
     {
-        return findResource(Vocab.uuid, Vocab.uuidLiteral(uuid));
+        return writeQueue.pending(u -> u.findUUID(uuid))
+            .getOrElse(() -> uuidIndex.get(uuid));
     }
 
     public Resource findObjectOrError (UUID uuid)
@@ -358,8 +559,22 @@ public class RdfStore
 
     public Resource findRankClass (int rank)
     {
-        return findResource(Vocab.rank, direct.createTypedLiteral(rank))
-            .getOrElseThrow(() -> new RdfErr.CorruptRDF("Cannot find rank class"));
+        var changed = writeQueue.pending(
+                u -> Option.when(u.changesRankClasses(), rank))
+            .isDefined();
+        Supplier<Resource> query = () ->
+            findResource(Vocab.rank, direct.createTypedLiteral(rank))
+                .getOrElseThrow(() -> new RdfErr.CorruptRDF("Cannot find rank class"));
+        if (changed)
+            return query.get();
+
+        return rankCache.rankClass(rank)
+            .getOrElse(() -> {
+                var klass = query.get();
+                if (writeQueue.isWriter())
+                    rankCache.putRankClass(rank, klass);
+                return klass;
+            });
     }
 
     private static final Query Q_findRank = Vocab.query("""
@@ -367,12 +582,31 @@ public class RdfStore
         where { ?obj rdf:type/<core/rank> ?rank }
     """);
 
-    public int findRank (Resource obj)
+    private int queryRank (Resource obj)
     {
         var binding = singleQuery(Q_findRank, "obj", obj);
         return Util.decodeLiteral(binding.get("rank"), Integer.class);
     }
 
+    /* The RankCache only holds committed ranks, so we must bypass it
+     * if this txn has changed the object's classes or their ranks. */
+    public int findRank (Resource obj)
+    {
+        var changed = writeQueue.pending(
+                u -> Option.when(u.changesRank(obj), obj))
+            .isDefined();
+        if (changed)
+            return queryRank(obj);
+
+        return rankCache.rank(obj)
+            .getOrElse(() -> {
+                var rank = queryRank(obj);
+                if (writeQueue.isWriter())
+                    rankCache.putRank(obj, rank);
+                return rank;
+            });
+    }
+
     public Resource createObject (Resource klass)
     {
         UUID uuid;
@@ -21,16 +21,17 @@ import uk.co.amrc.factoryplus.service.SvcErr;
  * include powersetOf in the future. */
 public record Relation (
     String name,        // the name used in the HTTP API
+    String inverse,     // the name from the object end
     Property prop,      // the RDF property
     int offset,         // the rank offset between subj and obj
     // permissions
     UUID readClass, UUID readObject, UUID writeClass, UUID writeObject)
 {
     public static final List<Relation> KNOWN = List.of(
-        new Relation("member", RDF.type, 1, 
+        new Relation("member", "membership", RDF.type, 1,
             Vocab.Perm.ReadMembers, Vocab.Perm.ReadMemberships,
             Vocab.Perm.WriteMembers, Vocab.Perm.WriteMemberships),
-        new Relation("subclass", RDFS.subClassOf, 0,
+        new Relation("subclass", "superclass", RDFS.subClassOf, 0,
             Vocab.Perm.ReadSubclasses, Vocab.Perm.ReadSuperclasses,
             Vocab.Perm.WriteSubclasses, Vocab.Perm.WriteSuperclasses));
 
@@ -45,6 +46,19 @@ public record Relation (
             .getOrElseThrow(() -> new SvcErr.NotFound("No such relation"));
     }
 
+    /* Find a relation by the name used from the object end, e.g.
+     * v2/object/{object}/membership. */
+    public static Option<Relation> findInverse (String inverse)
+    {
+        return KNOWN.find(r -> r.inverse.equals(inverse));
+    }
+
+    public static Relation ofInverse (String inverse)
+    {
+        return findInverse(inverse)
+            .getOrElseThrow(() -> new SvcErr.NotFound("No such relation"));
+    }
+
     public static record Bound (Relation relation, UUID uuid,
         boolean asClass, boolean direct)
     {
@@ -19,6 +19,8 @@ import org.apache.jena.rdf.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.reactivex.rxjava3.core.Single;
+
 import io.vavr.Lazy;
 
 import uk.co.amrc.factoryplus.client.FPAuth;
@@ -49,6 +51,9 @@ public class RequestHandler
     private UUID clientUUID;
     private Resource clientResource;
 
+    /* This is only set for write requests, once the txn has started. */
+    private ModelUpdate modelUpdate;
+
     public RequestHandler (RdfStore db, SecurityContext ctx)
     {
         this.db = db;
@@ -62,6 +67,16 @@ public class RequestHandler
     public Resource getInstant () { return now.get(); }
     public String upn () { return upn; }
 
+    /** The changes made so far by this request.
+     * This will be null outside a write request. */
+    public ModelUpdate modelUpdate () { return modelUpdate; }
+
+    RequestHandler withModelUpdate (ModelUpdate update)
+    {
+        this.modelUpdate = update;
+        return this;
+    }
+
     /* These will throw if we can't contact the Auth service. It's
      * important they throws on-thread as we need to abort the current
      * HTTP request. It's also important we fetch this before the txn
@@ -69,12 +84,25 @@ public class RequestHandler
      * open. */
     public RequestHandler fetchACL ()
     {
-        checker = db().fplus().auth()
-            .fetchChecker(upn)
-            .blockingGet();
-        return this;
+        return fetchACLAsync().blockingGet();
     }
     public RequestHandler fetchClientUUID ()
+    {
+        return fetchClientUUIDAsync().blockingGet();
+    }
+
+    /* The async versions fail the Single instead. The caller must not
+     * start a txn until they have completed. */
+    public Single<RequestHandler> fetchACLAsync ()
+    {
+        return db().fplus().auth()
+            .fetchChecker(upn)
+            .map(c -> {
+                checker = c;
+                return this;
+            });
+    }
+    public Single<RequestHandler> fetchClientUUIDAsync ()
     {
         log.info("Fetching client UUID");
         var auth = db().fplus().auth();
@@ -87,14 +115,14 @@ public class RequestHandler
              * who are acting as root'. In that case this special-casing
              * could be moved into FPAuth. */
             clientUUID = Vocab.U_Unowned;
+            return Single.just(this);
         }
-        else {
-            clientUUID = db().fplus().auth()
-                .resolveIdentity("kerberos", upn)
-                .blockingGet()
-                .getOrElseThrow(() -> new SvcErr.Upstream("I don't know who you are"));
-        }
-        return this;
+        return auth.resolveIdentity("kerberos", upn)
+            .map(id -> {
+                clientUUID = id.getOrElseThrow(
+                    () -> new SvcErr.Upstream("I don't know who you are"));
+                return this;
+            });
     }
 
     /* These are not necessarily available. Calling them when they have
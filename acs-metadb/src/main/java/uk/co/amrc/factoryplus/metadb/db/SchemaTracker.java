@@ -11,14 +11,23 @@
 package uk.co.amrc.factoryplus.metadb.db;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.ServiceConfigurationError;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jakarta.json.*;
 
 import dev.harrel.jsonschema.*;
 import dev.harrel.jsonschema.providers.*;
 
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
 import io.vavr.collection.*;
 import io.vavr.control.*;
 
@@ -43,35 +52,223 @@ public class SchemaTracker
         return result.isValid();
     }
 
-    private record SchemaSet (Validator validator, Set<Resource> apps)
-    { 
+    /* Recent validation results. Agents often PUT the same config
+     * repeatedly, or the same config to many objects. Results are keyed
+     * on a digest of the config's canonical form, so an entry costs the
+     * same however large the config is, and on the generation of the
+     * Validator which produced them. One memo serves every app; results
+     * from replaced Validators are never looked up again and age out.
+     * The memo is bounded by an estimate of its total size. */
+    private static class Memo
+    {
+        /* An estimate of the heap used by one entry: the map node, the
+         * key and its digest string, and the boxed result. */
+        private static final long ENTRY_BYTES = 200;
+        private static final long MAX_BYTES = 4 * 1024 * 1024;
+
+        private static final AtomicLong generations = new AtomicLong();
+
+        private record Key (long generation, String digest) { }
+
+        private long bytes = 0;
+        private final LinkedHashMap<Key, Boolean> results =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+        public static long nextGeneration ()
+        {
+            return generations.incrementAndGet();
+        }
+
+        public static Key key (long generation, JsonValue config)
+        {
+            var canon = new StringBuilder();
+            canonical(config, canon);
+            try {
+                var digest = MessageDigest.getInstance("SHA-256")
+                    .digest(canon.toString().getBytes(StandardCharsets.UTF_8));
+                return new Key(generation, HexFormat.of().formatHex(digest));
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("No SHA-256", e);
+            }
+        }
+
+        /* Object members are sorted, as JSON equality ignores their
+         * order. Strings and numbers use the Jakarta serialisation. */
+        private static void canonical (JsonValue value, StringBuilder out)
+        {
+            switch (value.getValueType()) {
+                case OBJECT -> {
+                    var obj = value.asJsonObject();
+                    out.append('{');
+                    var first = true;
+                    for (var k : TreeSet.ofAll(obj.keySet())) {
+                        if (!first) out.append(',');
+                        first = false;
+                        out.append(Json.createValue(k)).append(':');
+                        canonical(obj.get(k), out);
+                    }
+                    out.append('}');
+                }
+                case ARRAY -> {
+                    out.append('[');
+                    var first = true;
+                    for (var v : value.asJsonArray()) {
+                        if (!first) out.append(',');
+                        first = false;
+                        canonical(v, out);
+                    }
+                    out.append(']');
+                }
+                default -> out.append(value);
+            }
+        }
+
+        public synchronized Option<Boolean> get (Key key)
+        {
+            return Option.of(results.get(key));
+        }
+
+        public synchronized void put (Key key, boolean valid)
+        {
+            if (results.put(key, valid) == null)
+                bytes += ENTRY_BYTES;
+
+            var it = results.entrySet().iterator();
+            while (bytes > MAX_BYTES && it.hasNext()) {
+                it.next();
+                it.remove();
+                bytes -= ENTRY_BYTES;
+            }
+        }
+    }
+
+    /* A compiled schema. Each app has its own Validator holding its
+     * schema and the schemas it refers to with $ref, so changing one
+     * schema only means recompiling it and the schemas which refer to
+     * it. A Validator is never changed once it has been built, so its
+     * results can be memoised; a new Validator gets a new generation. */
+    private record Compiled (JsonValue value, int hash, Set<URI> refs,
+        Option<AppMapping> mapping, Validator validator, long generation)
+    {
+        public boolean sameContent (JsonValue other)
+        {
+            return hash == other.hashCode() && value.equals(other);
+        }
+
+        public Compiled withValidator (Validator validator)
+        {
+            return new Compiled(value, hash, refs, mapping, validator,
+                Memo.nextGeneration());
+        }
+
         public boolean validate (Resource app, JsonValue config)
         {
-            if (!apps.contains(app))
-                return true;
             return SchemaTracker._validate(validator, resURI(app), config);
         }
+
+        public boolean validateMemo (Memo memo, Resource app, JsonValue config)
+        {
+            var key = Memo.key(generation, config);
+            return memo.get(key).getOrElse(() -> {
+                var valid = validate(app, config);
+                memo.put(key, valid);
+                return valid;
+            });
+        }
+    }
+
+    private record SchemaSet (Map<Resource, Compiled> compiled)
+    {
+        /* Conflict checks see each config once, so they don't use the
+         * memo; they would only push out the useful entries. */
+        public boolean validate (Resource app, JsonValue config)
+        {
+            return compiled.get(app).forAll(c -> c.validate(app, config));
+        }
+
+        public boolean validateMemo (Memo memo, Resource app, JsonValue config)
+        {
+            return compiled.get(app).forAll(c -> c.validateMemo(memo, app, config));
+        }
+
+        /* The schemas which refer to any of these, directly or not */
+        public Set<Resource> dependents (Set<Resource> apps)
+        {
+            Set<Resource> found = HashSet.empty();
+            var targets = apps.map(SchemaTracker::resURI);
+
+            while (!targets.isEmpty()) {
+                var seen = found.addAll(apps);
+                var refs = targets;
+                var next = compiled
+                    .filter((app, c) -> !seen.contains(app)
+                        && c.refs().exists(refs::contains))
+                    .keySet();
+                found = found.addAll(next);
+                targets = next.map(SchemaTracker::resURI);
+            }
+            return found;
+        }
     }
 
-    private record Entry (Resource obj, UUID uuid, JsonValue value)
+    private record Entry (Resource app, Resource obj, UUID uuid, UUID etag,
+        JsonValue value)
     {
-        public static Entry ofQS (QuerySolution qs)
+        public static Entry ofQS (Resource app, QuerySolution qs)
         {
-            return new Entry(qs.getResource("obj"),
+            return new Entry(app, qs.getResource("obj"),
                 Util.decodeLiteral(qs.get("uuid"), UUID.class),
+                Util.decodeLiteral(qs.get("etag"), UUID.class),
                 Util.decodeLiteral(qs.get("value"), JsonValue.class));
         }
     }
 
+    /** A schema change which has been checked against the existing
+     * configs outside the write txn. The write can use the result as
+     * long as the schemas have not changed since; it then only needs
+     * to check configs written after our snapshot. */
+    public static final class Check
+    {
+        private final Resource app;
+        private final Option<JsonValue> value;
+        private final SchemaSet base;
+        private final SchemaSet next;
+        private final Set<Resource> rebuilt;
+        private final List<Entry> configs;
+
+        private Check (Resource app, Option<JsonValue> value, SchemaSet base,
+            SchemaSet next, Set<Resource> rebuilt, List<Entry> configs)
+        {
+            this.app = app;
+            this.value = value;
+            this.base = base;
+            this.next = next;
+            this.rebuilt = rebuilt;
+            this.configs = configs;
+        }
+
+        private Set<UUID> etags ()
+        {
+            return configs.map(Entry::etag).toSet();
+        }
+    }
+
     private RdfStore            db;
     private ValidatorFactory    factory;
     private Validator           internal;
     private URI                 dumpSchema;
+    private final Memo          memo = new Memo();
 
     /* Updates to this field always occurs within a Jena RW
      * transaction. This provides a global lock. We rely on this for
-     * consistency. */
-    private SchemaSet           schemas;
+     * consistency. It is read without the lock by prepare(). */
+    private volatile SchemaSet  schemas;
+    /* Checks which have passed, waiting for their write. The caller
+     * must release() a check once its write has finished, whether it
+     * succeeded or not, or we would hold the snapshot forever. */
+    private final java.util.Map<Resource, Check> checked
+        = new ConcurrentHashMap<>();
 
     public SchemaTracker (RdfStore db)
     {
@@ -86,7 +283,7 @@ public class SchemaTracker
         internal = factory.createValidator();
 
         /* We have no app schemas until start() */
-        schemas = new SchemaSet(factory.createValidator(), HashSet.empty());
+        schemas = new SchemaSet(HashMap.empty());
     }
 
     public void start ()
@@ -102,33 +299,143 @@ public class SchemaTracker
             throw new ServiceConfigurationError(
                 "Cannot load schema for dumps", e);
         }
-        schemas = db.calculateRead(() -> rebuildSchemas());
+        schemas = db.calculateRead(() -> {
+            var all = findConfigs(Vocab.App.ConfigSchema)
+                .toMap(e -> Tuple.of(e.obj(), Option.some(e.value())));
+            return recompile(schemas, all, HashSet.empty())._1();
+        });
+    }
+
+    /* The WriteQueue uses these to undo schema changes made by a
+     * request which fails part-way through a batch. The SchemaSet is
+     * immutable so we can simply keep hold of it. */
+    public static final class Savepoint
+    {
+        private final SchemaSet schemas;
+
+        private Savepoint (SchemaSet schemas)
+        {
+            this.schemas = schemas;
+        }
+    }
+
+    public Savepoint savepoint ()
+    {
+        return new Savepoint(schemas);
+    }
+
+    public void rollback (Savepoint savepoint)
+    {
+        schemas = savepoint.schemas;
     }
 
     public boolean validate (Resource app, JsonValue config)
     {
-        return schemas.validate(app, config);
+        return schemas.validateMemo(memo, app, config);
+    }
+
+    /* The Validator in use for an app's schema. A schema which has not
+     * been recompiled keeps the same Validator; tests rely on this. */
+    Option<Validator> compiledValidator (Resource app)
+    {
+        return schemas.compiled().get(app).map(Compiled::validator);
     }
 
-    /** @param app A list of apps to validate
+    /* The check waiting for a write to an app's schema, if any */
+    Option<Check> pendingCheck (Resource app)
+    {
+        return Option.of(checked.get(app));
+    }
+
+    /** The RDF mapping compiled from an app's schema, if it has one. */
+    public Option<AppMapping> mapping (Resource app)
+    {
+        return schemas.compiled().get(app).flatMap(Compiled::mapping);
+    }
+
+    /** Prepare to check a schema change before it is written.
+     * This compiles the new schema and takes a snapshot of the configs
+     * it affects; it must be called in a read txn.
+     * @param app The app whose schema is changing
+     * @param value The new schema, or None if it is being removed
+     */
+    public Check prepare (Resource app, Option<JsonValue> value)
+    {
+        var base = schemas;
+        var result = recompile(base, HashMap.of(app, value), HashSet.of(app));
+        var next = result._1();
+        var configs = result._2()
+            .filter(next.compiled()::containsKey)
+            .toList()
+            .flatMap(this::findConfigs);
+        return new Check(app, value, base, next, result._2(), configs);
+    }
+
+    /** Check a prepared schema change against the configs.
+     * This does not need a txn. If the check passes the write which
+     * follows will not need to repeat it.
+     * @throws RdfErr.SchemaConflict If a config would become invalid.
+     */
+    public void check (Check check)
+    {
+        checkConflicts(check.next, check.configs);
+        checked.put(check.app, check);
+    }
+
+    /** Forget a check once its write has finished.
+     * The write txn normally uses and removes the check itself; this
+     * covers writes which fail, are cancelled or are never run. A newer
+     * check for the same app is left alone.
+     */
+    public void release (Check check)
+    {
+        checked.remove(check.app, check);
+    }
+
+    /** Pick up changes to the schemas for some apps.
+     * Existing configs for these apps, and for apps whose schemas
+     * refer to them, must validate against the new schemas. If the
+     * change has been through check() we only validate configs which
+     * have changed since.
+     * @param apps The apps whose schemas have changed
      */
     public void updateSchemas (List<Resource> apps)
     {
-        /* We must rebuild all schemas, annoyingly. */
-        var newSchemas = rebuildSchemas();
+        var current = schemas;
+        var changes = apps.toMap(app -> Tuple.of(app, findSchema(app)));
+        var check = Option.when(apps.size() == 1, () -> checked.remove(apps.head()))
+            .flatMap(Option::of)
+            .filter(c -> c.base == current
+                && changes.get(c.app).contains(c.value));
 
-        apps.filter(newSchemas.apps::contains)
-            .forEach(app -> {
-                var conflicts = findConfigs(app)
-                    .filter(e -> !newSchemas.validate(app, e.value()))
-                    .map(Entry::uuid);
-                if (!conflicts.isEmpty())
-                    throw new RdfErr.SchemaConflict(conflicts);
-            });
+        var result = check
+            .map(c -> Tuple.of(c.next, c.rebuilt))
+            .getOrElse(() -> recompile(current, changes, apps.toSet()));
+        var newSchemas = result._1();
+        var seen = check.map(Check::etags).getOrElse(HashSet::empty);
+
+        var configs = result._2()
+            .filter(newSchemas.compiled()::containsKey)
+            .toList()
+            .flatMap(app -> findConfigs(app, seen));
+        checkConflicts(newSchemas, configs);
 
         schemas = newSchemas;
     }
 
+    /* Validate configs across the fork/join pool. We stop at the first
+     * conflict rather than collecting them all. */
+    private static void checkConflicts (SchemaSet schemas, List<Entry> configs)
+    {
+        configs.toJavaList().parallelStream()
+            .filter(e -> !schemas.validate(e.app(), e.value()))
+            .map(Entry::uuid)
+            .findAny()
+            .ifPresent(uuid -> {
+                throw new RdfErr.SchemaConflict(List.of(uuid));
+            });
+    }
+
     public boolean validateDump (JsonValue document)
     {
         return _validate(internal, dumpSchema, document);
@@ -146,27 +453,150 @@ public class SchemaTracker
     }
 
     private static final Query Q_findConfigs = Vocab.query("""
-        select ?obj ?uuid ?value
+        select ?obj ?uuid ?etag ?value
         where {
-            [] a ?app; <app/for> ?obj; <doc/content> ?value.
+            [] <app/app> ?app; <app/for> ?obj;
+                <app/etag> ?etag; <app/value> ?value.
             ?obj <core/uuid> ?uuid.
         }
     """);
     private List<Entry> findConfigs (Resource app)
     {
         return db.listQuery(Q_findConfigs, "app", app)
-            .map(Entry::ofQS);
+            .map(qs -> Entry.ofQS(app, qs));
+    }
+
+    private static final Query Q_findEtags = Vocab.query("""
+        select ?etag
+        where { [] <app/app> ?app; <app/etag> ?etag. }
+    """);
+    /* The configs which are not in a snapshot. We check the etags
+     * first so we don't decode every value when nothing has changed. */
+    private List<Entry> findConfigs (Resource app, Set<UUID> seen)
+    {
+        var changed = seen.isEmpty() || db.listQuery(Q_findEtags, "app", app)
+            .exists(qs -> !seen.contains(
+                Util.decodeLiteral(qs.get("etag"), UUID.class)));
+        if (!changed)
+            return List.empty();
+        return findConfigs(app)
+            .filter(e -> !seen.contains(e.etag()));
+    }
+
+    private Option<JsonValue> findSchema (Resource app)
+    {
+        return db.listQuery(Q_findConfigs,
+                "app", Vocab.App.ConfigSchema, "obj", app)
+            .headOption()
+            .map(qs -> Util.decodeLiteral(qs.get("value"), JsonValue.class));
     }
 
-    private SchemaSet rebuildSchemas ()
+    /* Apply changed schemas (None for a removed schema) to the current
+     * set. Only schemas whose content has changed are recompiled, and
+     * only they and their dependents get new Validators. Returns the
+     * new set and the apps whose validation may have changed.
+     *
+     * The RDF mappings are compiled here too. A bad mapping in a
+     * schema being changed by a request fails the request; anywhere
+     * else it can only have come from SPARQL, so we log it and leave
+     * the app unmapped. */
+    private Tuple2<SchemaSet, Set<Resource>> recompile (SchemaSet base,
+        Map<Resource, Option<JsonValue>> changes, Set<Resource> strict)
     {
-        var configs = findConfigs(Vocab.App.ConfigSchema);
-        var apps    = configs.map(Entry::obj).toSet();
-        var val     = factory.createValidator();
+        var current = base.compiled();
+        var changed = changes.filter((app, v) -> v.fold(
+            () -> current.containsKey(app),
+            val -> current.get(app).forAll(c -> !c.sameContent(val))));
+        if (changed.isEmpty())
+            return Tuple.of(base, HashSet.empty());
 
-        configs.forEach(entry -> 
-            val.registerSchema(resURI(entry.obj()), entry.value()));
+        var rebuild = changed.keySet()
+            .addAll(base.dependents(changed.keySet()));
+
+        var next = changed.foldLeft(current, (m, kv) -> kv._2().fold(
+            () -> m.remove(kv._1()),
+            val -> m.put(kv._1(), compile(kv._1(), val, strict.contains(kv._1())))));
+        var withRefs = next;
+        next = rebuild
+            .filter(withRefs::containsKey)
+            .foldLeft(next, (m, app) -> m.put(app,
+                withRefs.get(app).get().withValidator(validator(withRefs, app))));
+
+        log.info("Recompiled schemas for {} of {} apps", rebuild.size(), next.size());
+        return Tuple.of(new SchemaSet(next), rebuild);
+    }
+
+    /* The Validator is filled in once all the changes are known */
+    private Compiled compile (Resource app, JsonValue value, boolean strict)
+    {
+        return new Compiled(value, value.hashCode(),
+            findRefs(resURI(app), value),
+            compileMapping(app, value, strict),
+            null, 0);
+    }
+
+    private Validator validator (Map<Resource, Compiled> compiled, Resource app)
+    {
+        var val = factory.createValidator();
+        Set<Resource> seen = HashSet.empty();
+        var todo = List.of(app);
 
-        return new SchemaSet(val, apps);
+        while (!todo.isEmpty()) {
+            var res = todo.head();
+            todo = todo.tail();
+            if (seen.contains(res))
+                continue;
+            seen = seen.add(res);
+
+            var c = compiled.get(res).get();
+            val.registerSchema(resURI(res), c.value());
+            todo = todo.prependAll(c.refs()
+                .map(u -> ResourceFactory.createResource(u.toString()))
+                .filter(compiled::containsKey));
+        }
+        return val;
+    }
+
+    /* The other schemas this one refers to. We resolve $ref against
+     * the app's IRI, which is what the schema is registered under. */
+    private static Set<URI> findRefs (URI base, JsonValue schema)
+    {
+        switch (schema.getValueType()) {
+            case OBJECT:
+                return HashSet.ofAll(schema.asJsonObject().entrySet())
+                    .flatMap(e -> e.getKey().equals("$ref")
+                            || e.getKey().equals("$dynamicRef")
+                        ? refTarget(base, e.getValue()).toSet()
+                        : findRefs(base, e.getValue()));
+            case ARRAY:
+                return HashSet.ofAll(schema.asJsonArray())
+                    .flatMap(v -> findRefs(base, v));
+            default:
+                return HashSet.empty();
+        }
+    }
+
+    private static Option<URI> refTarget (URI base, JsonValue ref)
+    {
+        return Option.of(ref)
+            .filter(r -> r instanceof JsonString)
+            .flatMap(r -> Try.of(() -> base.resolve(((JsonString)r).getString()))
+                .mapTry(u -> new URI(u.getScheme(), u.getSchemeSpecificPart(), null))
+                .toOption())
+            .filter(u -> !u.equals(base));
+    }
+
+    private Option<AppMapping> compileMapping (Resource app, JsonValue value,
+        boolean strict)
+    {
+        try {
+            return AppMapping.compile(value);
+        }
+        catch (RdfErr.BadMapping e) {
+            if (strict)
+                throw e;
+            log.error("Bad RDF mapping for {}: {}", app, e.getMessage());
+            return Option.none();
+        }
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Factory+ metadata database
+ * Materialised class structure closure
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.compose.MultiUnion;
+import org.apache.jena.rdf.listeners.StatementListener;
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* The only inference we rely on is rdf:type over rdfs:subClassOf (see
+ * the comment on RdfStore.requestWrite). Jena's RDFS reasoner gives us
+ * this but every derived read goes through the rule engine, and it has
+ * to recompute everything when it is rebound. Instead we can keep the
+ * entailed rdf:type and rdfs:subClassOf statements in <graph/closure>
+ * in the TDB, and present derived as the union of this and the direct
+ * graph.
+ *
+ * This is registered as a listener on the direct graph, so the closure
+ * is updated inside the write txn and rolls back with it. The closure
+ * of a node depends only on the direct graph, so for each change we
+ * find the nodes which may be affected and recompute them. We follow
+ * Jena in making a class a subclass of itself when it appears in an
+ * rdfs:subClassOf statement or is directly a member of rdfs:Class. We
+ * do not infer membership of rdfs:Class from the domain and range of
+ * rdfs:subClassOf.
+ */
+public class TypeClosure extends StatementListener
+{
+    private static final Logger log = LoggerFactory.getLogger(TypeClosure.class);
+
+    /* Writes go to the direct graph only, as with an InfModel. TDB
+     * notifies listeners of deletes even when the triple was not
+     * present, so we must not pass deletes of closure triples through
+     * to the direct graph or they would appear in the ModelUpdate. */
+    private static class ClosureGraph extends MultiUnion
+    {
+        ClosureGraph (Graph direct, Graph closure)
+        {
+            super(new Graph[] { direct, closure });
+        }
+
+        @Override
+        public void performDelete (Triple t)
+        {
+            var base = getBaseGraph();
+            if (base.contains(t))
+                base.delete(t);
+        }
+
+        @Override
+        public void remove (Node s, Node p, Node o)
+        {
+            getBaseGraph().remove(s, p, o);
+        }
+    }
+
+    private Model direct;
+    private Model closure;
+
+    public TypeClosure (Model direct, Model closure)
+    {
+        this.direct = direct;
+        this.closure = closure;
+    }
+
+    /** Create a Model presenting the direct graph with its closure. */
+    public Model derived ()
+    {
+        return ModelFactory.createModelForGraph(
+            new ClosureGraph(direct.getGraph(), closure.getGraph()));
+    }
+
+    /* TXN */
+    public boolean isBuilt ()
+    {
+        return !closure.isEmpty();
+    }
+
+    /* TXN */
+    public void clear ()
+    {
+        closure.removeAll();
+    }
+
+    /* TXN */
+    public void rebuild ()
+    {
+        closure.removeAll();
+
+        var nodes = new HashSet<Resource>();
+        direct.listSubjectsWithProperty(RDF.type)
+            .forEachRemaining(nodes::add);
+        direct.listStatements(null, RDFS.subClassOf, (RDFNode)null)
+            .forEachRemaining(s -> {
+                nodes.add(s.getSubject());
+                if (s.getObject().isResource())
+                    nodes.add(s.getResource());
+            });
+
+        var memo = new HashMap<Resource, Set<Resource>>();
+        nodes.forEach(n -> recompute(n, memo));
+        log.info("Built class structure closure: {} statements", closure.size());
+    }
+
+    @Override
+    public void addedStatement (Statement s)
+    {
+        changed(s);
+    }
+
+    @Override
+    public void removedStatement (Statement s)
+    {
+        changed(s);
+    }
+
+    private void changed (Statement s)
+    {
+        var pred = s.getPredicate();
+        var memo = new HashMap<Resource, Set<Resource>>();
+
+        if (pred.equals(RDF.type)) {
+            recompute(s.getSubject(), memo);
+            return;
+        }
+        if (!pred.equals(RDFS.subClassOf) || !s.getObject().isResource())
+            return;
+
+        /* A change to the superclasses of a class changes every
+         * subclass and every member of those. The closure has not
+         * been updated yet so it still holds the old subclasses. The
+         * superclass may have become or stopped being a class. */
+        var classes = new HashSet<Resource>();
+        classes.add(s.getSubject());
+        closure.listSubjectsWithProperty(RDFS.subClassOf, s.getSubject())
+            .forEachRemaining(classes::add);
+
+        var nodes = new HashSet<Resource>(classes);
+        nodes.add(s.getResource());
+        for (var c : classes)
+            closure.listSubjectsWithProperty(RDF.type, c)
+                .forEachRemaining(nodes::add);
+
+        nodes.forEach(n -> recompute(n, memo));
+    }
+
+    /* The memo is only valid while the direct graph is unchanged. */
+    private Set<Resource> superclasses (Resource klass,
+        Map<Resource, Set<Resource>> memo)
+    {
+        var found = memo.get(klass);
+        if (found != null)
+            return found;
+
+        found = new HashSet<>();
+        var todo = new ArrayDeque<Resource>();
+        todo.add(klass);
+        while (!todo.isEmpty()) {
+            var c = todo.poll();
+            if (!found.add(c))
+                continue;
+            direct.listObjectsOfProperty(c, RDFS.subClassOf)
+                .filterKeep(RDFNode::isResource)
+                .forEachRemaining(n -> todo.add(n.asResource()));
+        }
+
+        memo.put(klass, found);
+        return found;
+    }
+
+    private void recompute (Resource node, Map<Resource, Set<Resource>> memo)
+    {
+        closure.removeAll(node, RDF.type, null);
+        closure.removeAll(node, RDFS.subClassOf, null);
+
+        var types = new HashSet<Resource>();
+        direct.listObjectsOfProperty(node, RDF.type)
+            .filterKeep(RDFNode::isResource)
+            .forEachRemaining(t -> types.addAll(superclasses(t.asResource(), memo)));
+        types.forEach(t -> closure.add(node, RDF.type, t));
+
+        var isClass = direct.contains(node, RDF.type, RDFS.Class)
+            || direct.contains(node, RDFS.subClassOf)
+            || direct.contains(null, RDFS.subClassOf, node);
+        if (isClass)
+            superclasses(node, memo)
+                .forEach(c -> closure.add(node, RDFS.subClassOf, c));
+    }
+}
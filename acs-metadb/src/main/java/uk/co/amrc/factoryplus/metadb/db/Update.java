@@ -15,18 +15,20 @@ import org.apache.jena.rdf.model.*;
 
 public interface Update
 {
+    /* seq is the change set this update came from */
     public record Config (
+            long seq,
             UUID app,
             UUID obj,
             Option<ConfigEntry.Value> value)
         implements Update
     {
-        public static Config ofQuerySolution (QuerySolution sol)
+        public static Config ofQuerySolution (long seq, QuerySolution sol)
         {
             var val = Option.some(sol)
                 .filter(s -> s.contains("value"))
                 .map(ConfigEntry.Value::ofQuerySolution);
-            return new Update.Config(
+            return new Update.Config(seq,
                 Util.decodeLiteral(sol.get("appU"), UUID.class),
                 Util.decodeLiteral(sol.get("objU"), UUID.class),
                 val);
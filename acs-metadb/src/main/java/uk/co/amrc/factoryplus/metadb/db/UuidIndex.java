@@ -0,0 +1,213 @@
+/*
+ * Factory+ metadata database
+ * In-memory UUID to object index
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.jena.rdf.model.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.vavr.control.Option;
+import io.vavr.control.Try;
+
+/* Looking up an object by UUID is the most common thing we do, and
+ * going through the TDB node table and matching literals every time is
+ * slow. This is an open-addressing hash table keyed on the two halves
+ * of the UUID, mapping to the object node.
+ *
+ * The index only reflects committed data. It is updated from the
+ * ModelUpdate of each committed txn; uncommitted changes must be
+ * looked up in the txn's own ModelUpdate first. We use linear probing
+ * with backward-shift deletion so we never need tombstones.
+ */
+public class UuidIndex
+{
+    private static final Logger log = LoggerFactory.getLogger(UuidIndex.class);
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[]      msbs;
+    private long[]      lsbs;
+    private Resource[]  nodes;
+    private int         size;
+
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public UuidIndex ()
+    {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /** Decode the UUID from a <core/uuid> statement. */
+    public static Option<UUID> decode (Statement stmt)
+    {
+        return Try.of(() -> Util.decodeLiteral(stmt.getObject(), UUID.class))
+            .toOption();
+    }
+
+    public Option<Resource> get (UUID uuid)
+    {
+        var msb = uuid.getMostSignificantBits();
+        var lsb = uuid.getLeastSignificantBits();
+
+        lock.readLock().lock();
+        try {
+            return Option.of(nodes[slot(msb, lsb)]);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size () { return size; }
+
+    /** Rebuild the index from scratch. This must be called within a
+     * txn. */
+    public void rebuild (Model model)
+    {
+        lock.writeLock().lock();
+        try {
+            allocate(INITIAL_CAPACITY);
+            model.listStatements(null, Vocab.uuid, (RDFNode)null)
+                .forEachRemaining(s -> decode(s)
+                    .peek(u -> put(u, s.getSubject())));
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Indexed {} object UUIDs", size);
+    }
+
+    /** Apply the changes from a committed txn. */
+    public void update (ModelUpdate update)
+    {
+        lock.writeLock().lock();
+        try {
+            for (var s : update.removed()) {
+                if (!s.getPredicate().equals(Vocab.uuid))
+                    continue;
+                decode(s)
+                    /* Don't remove an entry which has been replaced */
+                    .filter(u -> s.getSubject().equals(nodes[slot(u)]))
+                    .peek(this::remove);
+            }
+            for (var s : update.added()) {
+                if (!s.getPredicate().equals(Vocab.uuid))
+                    continue;
+                decode(s).peek(u -> put(u, s.getSubject()));
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* The methods below must be called with the appropriate lock
+     * held. */
+
+    private void allocate (int capacity)
+    {
+        msbs    = new long[capacity];
+        lsbs    = new long[capacity];
+        nodes   = new Resource[capacity];
+        size    = 0;
+    }
+
+    private static int hash (long msb, long lsb)
+    {
+        /* Well-known UUIDs are not random so we must mix the bits */
+        long h = msb ^ (lsb * 0x9e3779b97f4a7c15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int)h;
+    }
+
+    /* Returns the slot holding this key, or the empty slot where it
+     * would be inserted. */
+    private int slot (long msb, long lsb)
+    {
+        var mask = nodes.length - 1;
+        var i = hash(msb, lsb) & mask;
+        while (nodes[i] != null && (msbs[i] != msb || lsbs[i] != lsb))
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private int slot (UUID uuid)
+    {
+        return slot(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    private void put (UUID uuid, Resource node)
+    {
+        insert(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), node);
+        /* Keep the load factor at or below 1/2 */
+        if (size * 2 > nodes.length)
+            grow();
+    }
+
+    private void insert (long msb, long lsb, Resource node)
+    {
+        var i = slot(msb, lsb);
+        if (nodes[i] == null) {
+            msbs[i] = msb;
+            lsbs[i] = lsb;
+            size++;
+        }
+        nodes[i] = node;
+    }
+
+    private void grow ()
+    {
+        var oMsbs = msbs;
+        var oLsbs = lsbs;
+        var oNodes = nodes;
+
+        allocate(oNodes.length * 2);
+        for (int i = 0; i < oNodes.length; i++) {
+            if (oNodes[i] != null)
+                insert(oMsbs[i], oLsbs[i], oNodes[i]);
+        }
+    }
+
+    private void remove (UUID uuid)
+    {
+        var mask = nodes.length - 1;
+        var i = slot(uuid);
+        if (nodes[i] == null)
+            return;
+
+        nodes[i] = null;
+        size--;
+
+        /* Shift back any following entries in this run which can no
+         * longer be found from their home slot. An entry at j with
+         * home k must move if k does not lie cyclically in (i, j]. */
+        var j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (nodes[j] == null)
+                return;
+
+            var k = hash(msbs[j], lsbs[j]) & mask;
+            var stays = i < j ? (i < k && k <= j) : (i < k || k <= j);
+            if (stays)
+                continue;
+
+            msbs[i]     = msbs[j];
+            lsbs[i]     = lsbs[j];
+            nodes[i]    = nodes[j];
+            nodes[j]    = null;
+            i = j;
+        }
+    }
+}
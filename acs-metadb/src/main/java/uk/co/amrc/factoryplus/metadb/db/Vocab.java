@@ -96,6 +96,7 @@ public class Vocab
 
         public static final Property app            = prop("app/app");
         public static final Property forP           = prop("app/for");
+        public static final Property appliesTo      = prop("app/appliesTo");
         public static final Property etag           = prop("app/etag");
         public static final Property value          = prop("app/value");
     }
@@ -109,14 +110,12 @@ public class Vocab
         public static final UUID CreateSpecificObj = U("e3491b9c-50f1-11f0-8e16-e75c8f93227b");
         public static final UUID ReadMembers = U("d4fd61da-50ef-11f0-ad24-335234e4c8a2");
         public static final UUID WriteMembers = U("c2759f6e-50ef-11f0-8730-ef0ba0514a0e");
+        public static final UUID ReadMemberships = U("db9f5dae-50ef-11f0-b846-8393c17d1574");
         public static final UUID WriteMemberships = U("e08d89bc-50ef-11f0-8352-83e3d3d35028");
         public static final UUID ReadSubclasses = U("e6bb9978-50ef-11f0-b3c2-b79b9f64d2ff");
         public static final UUID WriteSubclasses = U("ed11bd2a-50ef-11f0-9f85-df13a1dff9e6");
-        public static final UUID WriteSuperclasses = U("fb8e5048-50ef-11f0-91c5-7fd3cb373fbb");
-
-        /* Currently unused */
-        public static final UUID ReadMemberships = U("db9f5dae-50ef-11f0-b846-8393c17d1574");
         public static final UUID ReadSuperclasses = U("f590e476-50ef-11f0-a120-e7c6d06d79ed");
+        public static final UUID WriteSuperclasses = U("fb8e5048-50ef-11f0-91c5-7fd3cb373fbb");
 
         public static final UUID DeleteObj = U("6957174b-7b08-45ca-ac5c-c03ab6928a6e");
         public static final UUID GiveTo = U("4eaab346-4d1e-11f0-800e-dfdc061c6a63");
@@ -128,6 +127,7 @@ public class Vocab
 
     public static final Resource G_direct   = res("graph/direct");
     public static final Resource G_derived  = res("graph/derived");
+    public static final Resource G_closure  = res("graph/closure");
     public static final Resource G_added    = res("graph/added");
     public static final Resource G_removed  = res("graph/removed");
 
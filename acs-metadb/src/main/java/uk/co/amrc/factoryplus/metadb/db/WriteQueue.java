@@ -0,0 +1,254 @@
+/*
+ * Factory+ metadata database
+ * Group-commit write queue
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+import org.apache.jena.query.ReadWrite;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.vavr.control.Option;
+
+/* TDB2 only permits a single writer, and every commit costs us an
+ * fsync and a dataflow pass. This class collects write requests from
+ * the HTTP threads and runs them on a single writer thread, committing
+ * as many as are waiting in one transaction.
+ *
+ * Each request has its own ModelUpdate listener recording the
+ * statements it changes. If a request throws we abort the txn and
+ * replay the rest of the batch in a new one. We cannot undo just the
+ * failed request's changes: the listener reports adding a triple which
+ * was already present, and removing one which was not, so reverting
+ * what it recorded could remove data the request never created.
+ * This means a request callback must be safe to run more than once;
+ * in particular it must not read from the HTTP request body.
+ */
+public class WriteQueue
+{
+    private static final Logger log = LoggerFactory.getLogger(WriteQueue.class);
+
+    /* The maximum number of requests committed in one txn. */
+    private static final int MAX_BATCH = 64;
+
+    private static class Pending<T>
+    {
+        private RequestHandler req;
+        private Function<RequestHandler, T> cb;
+        private CompletableFuture<T> result = new CompletableFuture<>();
+        private T rv;
+
+        Pending (RequestHandler req, Function<RequestHandler, T> cb)
+        {
+            this.req = req;
+            this.cb = cb;
+        }
+
+        /* TXN */
+        void run (ModelUpdate changes)
+        {
+            req.withModelUpdate(changes);
+            rv = cb.apply(req);
+            /* This must run here so errors from structured entries
+             * fail this request rather than the batch. */
+            req.appUpdater().update();
+        }
+
+        boolean isDone () { return result.isDone(); }
+        void succeed () { result.complete(rv); }
+        void fail (Throwable e) { result.completeExceptionally(e); }
+
+        T await ()
+        {
+            try {
+                return result.join();
+            }
+            catch (CompletionException e) {
+                /* Rethrow the original exception so the ErrorMapper
+                 * sees it. Request callbacks cannot throw checked
+                 * exceptions. */
+                var cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException)cause;
+                if (cause instanceof Error)
+                    throw (Error)cause;
+                throw e;
+            }
+        }
+    }
+
+    private RdfStore db;
+    private BlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+    private Thread writer;
+
+    /* These are only accessed from the writer thread. */
+    private ModelUpdate batchChanges;
+    private ModelUpdate requestChanges;
+
+    public WriteQueue (RdfStore db)
+    {
+        this.db = db;
+    }
+
+    public void start ()
+    {
+        writer = new Thread(this::run, "rdf-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Run a write request and wait for it to commit.
+     * This must not be called from within a transaction. */
+    public <T> T submit (RequestHandler req, Function<RequestHandler, T> cb)
+    {
+        if (isWriter())
+            throw new IllegalStateException("Nested write request");
+
+        var pending = new Pending<T>(req, cb);
+        queue.add(pending);
+        return pending.await();
+    }
+
+    /** Queue a write request without waiting for it.
+     * The future completes, on the writer thread, once the request
+     * has committed or failed. */
+    public <T> CompletableFuture<T> submitAsync (RequestHandler req,
+        Function<RequestHandler, T> cb)
+    {
+        var pending = new Pending<T>(req, cb);
+        queue.add(pending);
+        return pending.result;
+    }
+
+    public boolean isWriter ()
+    {
+        return Thread.currentThread() == writer;
+    }
+
+    /** Look something up in the uncommitted changes of the current
+     * txn. The changes of the current request are searched before the
+     * changes from the rest of the batch. This will only find anything
+     * when called from the writer thread. */
+    public <T> Option<T> pending (Function<ModelUpdate, Option<T>> lookup)
+    {
+        if (!isWriter() || batchChanges == null)
+            return Option.none();
+
+        return Option.of(requestChanges)
+            .flatMap(lookup)
+            .orElse(() -> lookup.apply(batchChanges));
+    }
+
+    private void run ()
+    {
+        log.info("Starting write queue");
+        try {
+            while (true) {
+                var batch = new ArrayList<Pending<?>>();
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                try {
+                    List<Pending<?>> todo = batch;
+                    while (!todo.isEmpty())
+                        todo = attempt(todo);
+                }
+                catch (Throwable e) {
+                    /* Don't let one bad batch stop the writer thread,
+                     * and don't leave any caller waiting forever. */
+                    log.error("Write batch failed", e);
+                    batch.forEach(p -> p.fail(e));
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            log.info("Write queue interrupted");
+        }
+    }
+
+    /* Run a batch in a single txn. Returns a list of requests which
+     * must be replayed in a new txn. */
+    private List<Pending<?>> attempt (List<Pending<?>> batch)
+    {
+        var dataset = db.dataset();
+        var direct = db.direct();
+        var schemas = db.schemaTracker();
+
+        var update = new ModelUpdate();
+        var committed = new ArrayList<Pending<?>>();
+        var savepoint = schemas.savepoint();
+        batchChanges = update;
+
+        try {
+            dataset.begin(ReadWrite.WRITE);
+
+            for (var p : batch) {
+                var changes = new ModelUpdate();
+
+                direct.register(changes);
+                requestChanges = changes;
+                try {
+                    p.run(changes);
+                }
+                catch (Throwable e) {
+                    dataset.abort();
+                    schemas.rollback(savepoint);
+                    p.fail(e);
+
+                    var replay = batch.stream()
+                        .filter(q -> !q.isDone())
+                        .toList();
+                    if (!replay.isEmpty())
+                        log.info("Replaying {} write requests after a failure",
+                            replay.size());
+                    return replay;
+                }
+                finally {
+                    direct.unregister(changes);
+                    requestChanges = null;
+                }
+
+                update.merge(changes);
+                committed.add(p);
+            }
+
+            dataset.commit();
+        }
+        catch (Throwable e) {
+            log.error("Write batch failed", e);
+            dataset.abort();
+            schemas.rollback(savepoint);
+            batch.forEach(p -> p.fail(e));
+            return List.of();
+        }
+        finally {
+            dataset.end();
+            batchChanges = null;
+        }
+
+        if (committed.size() > 1)
+            log.info("Committed {} write requests together", committed.size());
+
+        /* The txn has committed, so the requests have succeeded
+         * whether or not the subscribers cope with the update. */
+        try {
+            db.publishUpdate(update);
+        }
+        catch (Throwable e) {
+            log.error("Publishing committed update failed", e);
+        }
+        committed.forEach(Pending::succeed);
+        return List.of();
+    }
+}
@@ -8,16 +8,27 @@ package uk.co.amrc.factoryplus.metadb.db;
 
 import java.util.UUID;
 
+import io.vavr.collection.*;
+import io.vavr.control.Option;
+
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/* The invariants of the class structure. A full check runs at startup
+ * and on request; writes check only the objects they have touched,
+ * using the same queries with ?obj bound. */
 public record ZFC (RdfStore db)
 {
     private static final Logger log = LoggerFactory.getLogger(ZFC.class);
 
+    /* Past this many objects the per-object queries cost more than
+     * the full scan. */
+    private static final int MAX_INCREMENTAL = 1000;
+
     private static final Query V_dupUUID = Vocab.query("""
         select ?obj
         where {
@@ -54,23 +65,33 @@ public record ZFC (RdfStore db)
         group by ?objU
         having (count(?rank) != 1)
     """);
-    /* The ConfigDB had these checks on the direct relations. But they
-     * are very slow here (a lot of relations to check) and I believe
-     * that given our ranks are derived the badRank check above will
-     * catch any rank errors. */
-//    private static final Query V_relRank = Vocab.query("""
-//        select ?objU ?classU
-//        where {
-//            ?obj <core/uuid> ?objU;
-//                rdf:type/<core/rank> ?objR.
-//            ?class <core/uuid> ?classU; 
-//                rdf:type/<core/rank> ?classR.
-//
-//            graph <graph/direct> { ?obj ?prop ?class. }
-//
-//            filter (?classR != ?objR + ?offset)
-//        }
-//    """);
+    /* The dupIRI check for a single object. */
+    private static final Query V_objDupIRI = Vocab.query("""
+        select ?objU
+        where {
+            ?obj <core/uuid> ?objU.
+            ?other <core/uuid> ?objU.
+        }
+        group by ?objU
+        having (count(?other) != 1)
+    """);
+    /* The ConfigDB had these checks on the direct relations. They are
+     * very slow across the whole store (a lot of relations to check),
+     * so the full check only runs them when asked; writes check the
+     * relations of the objects they touch, with ?obj or ?class bound. */
+    private static final Query V_relRank = Vocab.query("""
+        select ?objU ?classU
+        where {
+            ?obj <core/uuid> ?objU;
+                rdf:type/<core/rank> ?objR.
+            ?class <core/uuid> ?classU; 
+                rdf:type/<core/rank> ?classR.
+
+            graph <graph/direct> { ?obj ?prop ?class. }
+
+            filter (?classR != ?objR + ?offset)
+        }
+    """);
     private static final Query V_notPrimary = Vocab.query("""
         select ?objU
         where {
@@ -103,10 +124,10 @@ public record ZFC (RdfStore db)
         return Util.decodeLiteral(qs.get(arg), UUID.class);
     }
 
-    private void _validateObjs (String msg, Query query)
+    private void _validateObjs (String msg, Query query, Object... substs)
     {
-        log.info("checking {}", msg);
-        var bad = db().listQuery(query);
+        log.debug("checking {}", msg);
+        var bad = db().listQuery(query, substs);
         if (!bad.isEmpty()) {
             var uuids = bad.map(qs -> getU(qs, "objU"));
             log.error("{}: {}", msg, uuids);
@@ -114,19 +135,94 @@ public record ZFC (RdfStore db)
         }
     }
 
-//    private void _validateRelation (Relation rel)
-//    {
-//        log.info("checking {}", rel.name());
-//        var badRel = db().listQuery(V_relRank, 
-//            "prop", rel.prop(), "offset", Util.intLiteral(rel.offset()));
-//        if (!badRel.isEmpty()) {
-//            var rels = badRel.toMap(qs -> getU(qs, "objU"), qs -> getU(qs, "classU"));
-//            log.error("Invalid {}: {}", rel.name(), rels);
-//            throw new RdfErr.InvalidRels("Invalid " + rel.name(), rels);
-//        }
-//    }
-
-    /* This will throw if it detects a problem. */
+    private void _validateRelation (Relation rel, Object... substs)
+    {
+        log.debug("checking {}", rel.name());
+        var args = List.<Object>of("prop", rel.prop(),
+                "offset", Util.intLiteral(rel.offset()))
+            .appendAll(List.of(substs));
+        var badRel = db().listQuery(V_relRank, args.toJavaList().toArray());
+        if (!badRel.isEmpty()) {
+            var rels = badRel.toMap(qs -> getU(qs, "objU"), qs -> getU(qs, "classU"));
+            log.error("Invalid {}: {}", rel.name(), rels);
+            throw new RdfErr.InvalidRels("Invalid " + rel.name(), rels);
+        }
+    }
+
+    /** Check the whole store, including the relation ranks.
+     * This is slow; it is for explicit maintenance requests. */
+    public void validateAll ()
+    {
+        validateInvariants();
+        for (var rel : Relation.KNOWN)
+            _validateRelation(rel);
+    }
+
+    /** Check the objects touched by an update.
+     * If the update is untracked, or too large, we check everything
+     * except the relation ranks. */
+    public void validateUpdate (ModelUpdate update)
+    {
+        var objs = Option.when(update.isTracked(), () -> touched(update))
+            .filter(o -> o.size() <= MAX_INCREMENTAL);
+        if (objs.isEmpty()) {
+            validateInvariants();
+            return;
+        }
+
+        log.info("Validating class structure for {} objects", objs.get().size());
+        objs.get().forEach(this::validateObject);
+    }
+
+    /* The objects an update may have affected. A change to a class's
+     * superclasses changes the derived types of all its members, and a
+     * change to its <core/rank> changes their ranks. Only resources
+     * with UUIDs are objects; the checks ignore anything else, so we
+     * can skip it here. */
+    private Set<Resource> touched (ModelUpdate update)
+    {
+        var derived = db().derived();
+        var nodes = update.statements()
+            .flatMap(s -> List.<RDFNode>of(s.getSubject(), s.getObject()))
+            .filter(RDFNode::isResource)
+            .map(RDFNode::asResource)
+            .toSet();
+        var reclassed = update.statements()
+            .filter(s -> s.getPredicate().equals(RDFS.subClassOf)
+                || s.getPredicate().equals(Vocab.rank))
+            .map(Statement::getSubject)
+            .toSet()
+            .flatMap(c -> Iterator.ofAll(
+                derived.listResourcesWithProperty(RDF.type, c)));
+
+        return nodes.addAll(reclassed)
+            .filter(r -> derived.contains(r, Vocab.uuid));
+    }
+
+    private void validateObject (Resource obj)
+    {
+        var iris = db().listQuery(V_dupUUID, "obj", obj);
+        if (!iris.isEmpty()) {
+            log.error("IRI with multiple UUIDs: {}", obj);
+            throw new RdfErr.InvalidIris("IRI with multiple UUIDs", List.of(obj));
+        }
+
+        _validateObjs("UUID with multiple IRIs", V_objDupIRI, "obj", obj);
+        _validateObjs("Bad primary class", V_badPrimary, "obj", obj);
+        _validateObjs("Invalid ranks", V_badRank, "obj", obj);
+
+        for (var rel : Relation.KNOWN) {
+            _validateRelation(rel, "obj", obj);
+            _validateRelation(rel, "class", obj);
+        }
+
+        _validateObjs("Not member of primary class", V_notPrimary, "obj", obj);
+        _validateObjs("Not subclass of rank root", V_notSubclass, "obj", obj);
+        _validateObjs("Individuals may not be subclasses", V_indSubclass, "obj", obj);
+    }
+
+    /** Check the whole store, except the relation ranks.
+     * This will throw if it detects a problem. */
     public void validateInvariants ()
     {
         log.info("Validating class structure invariants");
@@ -142,12 +238,6 @@ public record ZFC (RdfStore db)
         _validateObjs("UUID with multiple IRIs", V_dupIRI);
         _validateObjs("Bad primary class", V_badPrimary);
         _validateObjs("Invalid ranks", V_badRank);
-
-        /* Disable these for now, they're slow and I'm not sure they add
-         * any value over the rank check. */
-        //for (var rel : Relation.KNOWN)
-        //    _validateRelation(rel);
-        
         _validateObjs("Not member of primary class", V_notPrimary);
         _validateObjs("Not subclass of rank root", V_notSubclass);
         _validateObjs("Individuals may not be subclasses", V_indSubclass);
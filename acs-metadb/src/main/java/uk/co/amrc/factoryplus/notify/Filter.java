@@ -6,8 +6,6 @@
 
 package uk.co.amrc.factoryplus.notify;
 
-import java.util.concurrent.TimeUnit;
-
 import jakarta.json.*;
 
 import io.reactivex.rxjava3.core.*;
@@ -27,17 +25,10 @@ interface Filter
 {
     Option<Observable<NotifyUpdate>> handleRequest (Session sess, Request request);
 
-    /* We need to rate-control our notify output, otherwise we get
-     * massive churn when we load a lot of data. It is important this is
-     * applied to a level-triggered sequence as it will drop
-     * notifications. It's possible the 10s throttle timeout might be
-     * too long. */
-    public static <T> Observable<T> rateControl (Observable<T> src)
-    {
-        return src
-            .throttleLatest(10, TimeUnit.SECONDS, true)
-            .distinctUntilChanged();
-    }
+    /* Can the sequence for a request be shared between sessions with
+     * the same ACL? It must be level-triggered for this to work, as a
+     * new session will only see the latest update. */
+    default boolean isShareable () { return false; }
 
     class Path
     {
@@ -71,6 +62,8 @@ interface Filter
             this.handler = handler;
         }
 
+        public boolean isShareable () { return true; }
+
         public Option<Observable<NotifyUpdate>> handleRequest (Session sess, Request sub)
         {
             return Option.some(sub)
@@ -78,15 +71,16 @@ interface Filter
                 .map(s -> s.body().getJsonObject("request"))
                 .filter(r -> r.getString("method", "GET").equals("GET"))
                 .flatMap(r -> path.checkPath(r.getString("url")))
-                .map(args -> buildWatch(this.handler.handle(sess, args)));
+                .map(args -> buildWatch(sess, sub, this.handler.handle(sess, args)));
         }
 
-        private Observable<NotifyUpdate> buildWatch (
-            Observable<Response<JsonValue>> resps)
+        private Observable<NotifyUpdate> buildWatch (Session sess,
+            Request sub, Observable<Response<JsonValue>> resps)
         {
             return resps
-                .compose(Filter::rateControl)
-                .zipWith(IsFirst.isFirst(), NotifyUpdate::ofResponse);
+                .compose(RateControl.forRequest(sub, sess.notifyV2().rateStats()))
+                .distinctUntilChanged()
+                .map(r -> NotifyUpdate.ofResponse(r, false));
         }
     }
 
@@ -94,9 +88,9 @@ interface Filter
     {
         private static final Logger log = LoggerFactory.getLogger(Search.class);
         private Path path;
-        private Handler<SearchUpdate> handler;
+        private SearchHandler handler;
 
-        public Search (String path, Handler<SearchUpdate> handler)
+        public Search (String path, SearchHandler handler)
         {
             this.path = new Path(path);
             this.handler = handler;
@@ -107,20 +101,27 @@ interface Filter
             return Option.some(sub)
                 .filter(s -> s.method() == Request.Method.SEARCH)
                 .flatMap(s -> path.checkPath(s.body().getString("parent")))
-                .map(args -> buildSearch(this.handler.handle(sess, args)));
+                .map(args -> {
+                    var filter = SearchFilter.fromRequest(sub);
+                    return buildSearch(filter,
+                        this.handler.handle(sess, args, filter));
+                });
         }
-        
-        /* XXX Filtering not implemented for now */
-        private Observable<NotifyUpdate> buildSearch (Observable<SearchUpdate> updates)
+
+        /* The handler gives us a full update followed by a child update
+         * for each change. These are edge-triggered so we cannot
+         * rate-control them by dropping updates. SearchView applies the
+         * filter to each change as it arrives, and turns a later full
+         * update (after an ACL change, for instance) into a diff. */
+        private Observable<NotifyUpdate> buildSearch (SearchFilter filter,
+            Observable<SearchUpdate> updates)
         {
-            var src = updates.compose(Filter::rateControl);
-            return src
-                /* It doesn't matter what this first item is as long as
-                 * it's not a Full update */
-                .zipWith(src.startWithItem(SearchUpdate.notFound()),
-                    SearchUpdate::diffFrom)
-                .flatMapIterable(l -> l)
-                .zipWith(IsFirst.isFirst(), SearchUpdate::toUpdate);
+            return updates
+                .scan(SearchView.initial(filter),
+                    (st, upd) -> st.view().next(upd))
+                .skip(1)
+                .flatMapIterable(SearchView.Step::updates)
+                .map(u -> u.toUpdate(false));
         }
     }
 }
@@ -6,14 +6,26 @@
 
 package uk.co.amrc.factoryplus.notify;
 
+import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
 
 import jakarta.json.*;
 
+import io.vavr.Lazy;
+
 import uk.co.amrc.factoryplus.util.Response;
 
-public record NotifyUpdate (int status, JsonObject content)
+/* An update may be sent to many sessions (see NotifyV2.findHandler).
+ * The content is serialised once, when it is first sent, and the
+ * per-session fields are spliced in around it. */
+public record NotifyUpdate (int status, JsonObject content, Lazy<String> members)
 {
+    public NotifyUpdate (int status, JsonObject content)
+    {
+        this(status, content, Lazy.of(() -> serialiseMembers(content)));
+    }
+
     public static NotifyUpdate empty (int status)
     {
         return new NotifyUpdate(status, JsonValue.EMPTY_JSON_OBJECT);
@@ -39,12 +51,58 @@ public record NotifyUpdate (int status, JsonObject content)
 
     public boolean ok () { return status < 400; }
 
-    public JsonValue toJson (UUID session)
+    /** Mark this as the first update a session sees for a
+     * subscription, or not. */
+    public NotifyUpdate initial (boolean initial)
     {
-        var obj = Json.createObjectBuilder(content)
-            .add("status", status)
-            .add("uuid", session.toString());
-        return obj.build();
+        if (initial && status == 200)
+            return new NotifyUpdate(201, content, members);
+        return this;
+    }
+
+    /** The key under which this update may be conflated with later
+     * updates when a client is not reading fast enough. Only ordinary
+     * 200 updates may be dropped; the client must see the initial and
+     * final updates. SEARCH child updates conflate per child. */
+    public Object conflationKey (UUID sub)
+    {
+        if (status != 200)
+            return null;
+        var child = content.get("child");
+        return child == null ? sub : List.of(sub, child);
+    }
+
+    /* The members of the content object without the braces */
+    private static String serialiseMembers (JsonObject content)
+    {
+        var json = content.toString();
+        return json.substring(1, json.length() - 1);
+    }
+
+    public String toJsonString (UUID session)
+    {
+        var members = this.members.get();
+        var json = new StringBuilder(members.length() + 64)
+            .append("{\"status\":").append(status)
+            .append(",\"uuid\":\"").append(session).append('"');
+        if (!members.isEmpty())
+            json.append(',').append(members);
+        return json.append('}').toString();
+    }
+
+    /* The serialised form is derived from the content */
+    @Override
+    public boolean equals (Object other)
+    {
+        if (!(other instanceof NotifyUpdate))
+            return false;
+        var upd = (NotifyUpdate)other;
+        return status == upd.status && content.equals(upd.content);
     }
-}
 
+    @Override
+    public int hashCode ()
+    {
+        return Objects.hash(status, content);
+    }
+}
@@ -7,7 +7,12 @@
 package uk.co.amrc.factoryplus.notify;
 
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
+import java.util.zip.Deflater;
 
 import jakarta.json.*;
 
@@ -19,11 +24,15 @@ import io.vavr.control.Option;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.util.compression.DeflaterPool;
+import org.eclipse.jetty.websocket.api.ExtensionConfig;
+import org.eclipse.jetty.websocket.core.server.WebSocketServerComponents;
 import org.eclipse.jetty.websocket.server.WebSocketUpgradeHandler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.co.amrc.factoryplus.http.SendQueue;
 import uk.co.amrc.factoryplus.http.TextWebsocket;
 import uk.co.amrc.factoryplus.providers.AuthProvider;
 import uk.co.amrc.factoryplus.util.Response;
@@ -33,10 +42,37 @@ public class NotifyV2
 {
     private static final Logger log = LoggerFactory.getLogger(NotifyV2.class);
 
+    /* How long to keep a shared sequence after its last subscriber */
+    private static final long SHARE_TIMEOUT = 5;
+
+    /* Outgoing messages we will queue for a client before we start
+     * conflating updates, and how long the queue may stay over this
+     * before we disconnect the client. */
+    private static final long SEND_BUDGET = 4 * 1024 * 1024;
+    private static final long SEND_GRACE = 10000;
+
+    /* The number of Deflaters to keep pooled for compression */
+    private static final int DEFLATER_POOL = 64;
+
+    private static final String DEFLATE = "permessage-deflate";
+
+    /** permessage-deflate settings.
+     * A level of 0 disables compression. Without context takeover
+     * each message is compressed alone; this compresses less well but
+     * we don't need to keep a compressor per connection. */
+    public record Compression (int level, boolean contextTakeover)
+    {
+        public static final Compression DEFAULT =
+            new Compression(Deflater.DEFAULT_COMPRESSION, true);
+
+        public boolean enabled () { return level != 0; }
+    }
+
     public static class Builder
     {
         private AuthProvider auth;
         private List<Filter> filters = List.empty();
+        private Compression compression = Compression.DEFAULT;
 
         Builder (AuthProvider auth)
         {
@@ -49,25 +85,44 @@ public class NotifyV2
             return this;
         }
 
-        public Builder search (String path, Handler<SearchUpdate> handler)
+        public Builder search (String path, SearchHandler handler)
         {
             filters = filters.prepend(new Filter.Search(path, handler));
             return this;
         }
 
+        public Builder compression (Compression compression)
+        {
+            this.compression = compression;
+            return this;
+        }
+
         public NotifyV2 build ()
         {
-            return new NotifyV2(auth, filters.reverse());
+            return new NotifyV2(auth, filters.reverse(), compression);
         }
     }
 
+    /* Sessions whose principal gets the same ACL results can share a
+     * sequence. Since ACLs depend only on the principal this means the
+     * same UPN, or any root principal (which skip ACL checks). */
+    private record SharedKey (boolean root, String upn, JsonObject request) { }
+
     private AuthProvider auth;
     private List<Filter> filters;
+    private Compression compression;
+    private ConcurrentHashMap<SharedKey, Observable<NotifyUpdate>> shared =
+        new ConcurrentHashMap<>();
+    private java.util.Set<SendQueue> queues = ConcurrentHashMap.newKeySet();
+    private AtomicLong conflated = new AtomicLong();
+    private RateControl.Stats rateStats = new RateControl.Stats();
 
-    private NotifyV2 (AuthProvider auth, List<Filter> filters)
+    private NotifyV2 (AuthProvider auth, List<Filter> filters,
+        Compression compression)
     {
         this.auth = auth;
         this.filters = filters;
+        this.compression = compression;
         log.info("Build NotifyV2: {}", filters);
     }
 
@@ -83,28 +138,135 @@ public class NotifyV2
         log.info("Handling WS connections on notify/v2");
         var ch = new ContextHandler("/notify");
 
+        /* This must be set before the WS components are created */
+        if (compression.enabled())
+            ch.setAttribute(
+                WebSocketServerComponents.WEBSOCKET_DEFLATER_POOL_ATTRIBUTE,
+                new DeflaterPool(DEFLATER_POOL, compression.level(), true));
+
         var wsh = WebSocketUpgradeHandler.from(server, ch, 
             cont -> cont.addMapping("/v2",
-                (req, res, cb) -> newClientSession()));
+                (req, res, cb) -> {
+                    res.setExtensions(negotiate(req.getExtensions()));
+                    return newClientSession();
+                }));
 
         ch.setHandler(wsh);
         return ch;
     }
 
+    /* We only support permessage-deflate. The client may offer it
+     * more than once with different parameters; we accept the first
+     * and impose our own context takeover setting. */
+    private java.util.List<ExtensionConfig> negotiate (
+        java.util.List<ExtensionConfig> offered)
+    {
+        if (!compression.enabled())
+            return java.util.List.of();
+
+        return Stream.ofAll(offered)
+            .find(e -> e.getName().equals(DEFLATE))
+            .map(e -> {
+                var ext = ExtensionConfig.parse(DEFLATE);
+                if (!compression.contextTakeover()) {
+                    ext.setParameter("server_no_context_takeover");
+                    ext.setParameter("client_no_context_takeover");
+                }
+                return java.util.List.of(ext);
+            })
+            .getOrElse(java.util.List.of());
+    }
+
     private TextWebsocket.Endpoint newClientSession ()
     {
         var sess = new Session(this);
-        var ep = new TextWebsocket.Endpoint();
+        var queue = new SendQueue(SEND_BUDGET, SEND_GRACE);
+        var ep = new TextWebsocket.Endpoint(queue);
+
+        queues.add(queue);
 
         sess.start(ep.getDuplex());
         return ep;
     }
 
+    void closed (SendQueue queue)
+    {
+        if (queues.remove(queue))
+            conflated.addAndGet(queue.conflated());
+    }
+
+    /** The number of connected sessions. */
+    public int sessions () { return queues.size(); }
+
+    /** The number of messages queued for all sessions. */
+    public long queuedMessages ()
+    {
+        return queues.stream().mapToLong(SendQueue::depth).sum();
+    }
+
+    /** The size of the messages queued for all sessions. */
+    public long queuedBytes ()
+    {
+        return queues.stream().mapToLong(SendQueue::bytes).sum();
+    }
+
+    /** The largest send queue of any session. */
+    public long maxQueuedBytes ()
+    {
+        return queues.stream().mapToLong(SendQueue::bytes).max().orElse(0);
+    }
+
+    /** The number of updates dropped in favour of later updates. */
+    public long conflated ()
+    {
+        return conflated.get() 
+            + queues.stream().mapToLong(SendQueue::conflated).sum();
+    }
+
+    RateControl.Stats rateStats () { return rateStats; }
+
+    /** The number of updates sent by WATCH rate control. */
+    public long rateEmitted () { return rateStats.emitted.sum(); }
+
+    /** The number of updates rate control dropped in favour of a
+     * later update. */
+    public long rateCoalesced () { return rateStats.coalesced.sum(); }
+
     public Option<Observable<NotifyUpdate>> findHandler (Session sess, Request req)
     {
         log.info("Finding handler for {}", req);
         return filters.iterator()
-            .flatMap(f -> f.handleRequest(sess, req))
+            .flatMap(f -> handleRequest(f, sess, req))
             .headOption();
     }
+
+    /* Identical subscriptions share one sequence, so each update is
+     * built and serialised once however many sessions are watching. */
+    private Option<Observable<NotifyUpdate>> handleRequest (
+        Filter filter, Session sess, Request req)
+    {
+        var seq = filter.handleRequest(sess, req);
+        if (!filter.isShareable())
+            return seq;
+
+        var key = new SharedKey(sess.isRoot(),
+            sess.isRoot() ? null : sess.upn(), req.spec());
+        return seq.map(s -> Observable.defer(() ->
+            shared.computeIfAbsent(key, k -> share(k, s))));
+    }
+
+    /* The sequence removes itself from the map when it finishes. By
+     * then a new session may have replaced it with a fresh sequence,
+     * which we must leave alone. */
+    private Observable<NotifyUpdate> share (SharedKey key,
+        Observable<NotifyUpdate> seq)
+    {
+        var self = new AtomicReference<Observable<NotifyUpdate>>();
+        var obs = seq
+            .doFinally(() -> shared.remove(key, self.get()))
+            .replay(1)
+            .refCount(SHARE_TIMEOUT, TimeUnit.SECONDS);
+        self.set(obs);
+        return obs;
+    }
 }
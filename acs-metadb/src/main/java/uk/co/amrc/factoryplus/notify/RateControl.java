@@ -0,0 +1,165 @@
+/*
+ * Factory+ service api
+ * Adaptive notify rate control
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.notify;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.reactivex.rxjava3.core.*;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* We need to rate-control our notify output, otherwise we get massive
+ * churn when we load a lot of data. But a fixed throttle delays a
+ * single change on an idle subscription for no reason.
+ *
+ * This emits immediately when the subscription is idle. If another
+ * update arrives before the current delay has passed we hold on to
+ * the latest and emit it when the delay expires, doubling the delay
+ * each time up to the maximum. Once the subscription has been quiet
+ * for a whole delay period we go back to the minimum. It is important
+ * this is applied to a level-triggered sequence as it will drop
+ * updates.
+ */
+class RateControl<T> implements ObservableTransformer<T, T>
+{
+    private static final Logger log = LoggerFactory.getLogger(RateControl.class);
+
+    static final long MIN_DELAY = 100;
+    static final long DEFAULT_MAX_DELAY = 10000;
+    static final long LIMIT_MAX_DELAY = 60000;
+
+    /* Totals across every subscription, for metrics. These are
+     * updated as we go rather than when a subscription ends. */
+    static class Stats
+    {
+        final LongAdder emitted = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+    }
+
+    private UUID sub;
+    private long maxDelay;
+    private Scheduler scheduler;
+    private Stats stats;
+
+    RateControl (UUID sub, long maxDelay, Scheduler scheduler, Stats stats)
+    {
+        this.sub = sub;
+        this.maxDelay = Math.max(MIN_DELAY, Math.min(maxDelay, LIMIT_MAX_DELAY));
+        this.scheduler = scheduler;
+        this.stats = stats;
+    }
+
+    /** Rate control for a notify request.
+     * The client may suggest a maximum latency in milliseconds. */
+    static <T> RateControl<T> forRequest (Request req, Stats stats)
+    {
+        var max = req.maxLatency().getOrElse(DEFAULT_MAX_DELAY);
+        return new RateControl<>(req.uuid(), max, Schedulers.computation(),
+            stats);
+    }
+
+    public ObservableSource<T> apply (Observable<T> upstream)
+    {
+        return Observable.create(em -> {
+            var state = new Coalescer(em);
+            var upstreamSub = upstream.subscribe(
+                state::onNext, state::onError, state::onComplete);
+            em.setCancellable(() -> {
+                upstreamSub.dispose();
+                state.dispose();
+            });
+        });
+    }
+
+    private class Coalescer
+    {
+        private ObservableEmitter<T> em;
+        private Scheduler.Worker worker = scheduler.createWorker();
+
+        private long delay = MIN_DELAY;
+        private long nextAllowed = 0;
+        private boolean scheduled = false;
+        private boolean completed = false;
+        private T pending = null;
+
+        private long emitted = 0;
+        private long coalesced = 0;
+
+        Coalescer (ObservableEmitter<T> em)
+        {
+            this.em = em;
+        }
+
+        private long now () { return worker.now(TimeUnit.MILLISECONDS); }
+
+        synchronized void onNext (T value)
+        {
+            var now = now();
+            if (!scheduled && now >= nextAllowed) {
+                if (now - nextAllowed >= delay)
+                    delay = MIN_DELAY;
+                emit(value, now);
+                return;
+            }
+
+            if (pending != null) {
+                coalesced++;
+                stats.coalesced.increment();
+            }
+            pending = value;
+            if (!scheduled) {
+                scheduled = true;
+                worker.schedule(this::flush, nextAllowed - now, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void onError (Throwable e)
+        {
+            em.onError(e);
+        }
+
+        synchronized void onComplete ()
+        {
+            if (scheduled)
+                completed = true;
+            else
+                em.onComplete();
+        }
+
+        private synchronized void flush ()
+        {
+            scheduled = false;
+            if (pending != null) {
+                /* Updates are still arriving, so back off */
+                delay = Math.min(delay * 2, maxDelay);
+                var value = pending;
+                pending = null;
+                emit(value, now());
+            }
+            if (completed)
+                em.onComplete();
+        }
+
+        private void emit (T value, long now)
+        {
+            emitted++;
+            stats.emitted.increment();
+            nextAllowed = now + delay;
+            em.onNext(value);
+        }
+
+        synchronized void dispose ()
+        {
+            worker.dispose();
+            log.info("Sub {}: emitted {}, coalesced {}", sub, emitted, coalesced);
+        }
+    }
+}
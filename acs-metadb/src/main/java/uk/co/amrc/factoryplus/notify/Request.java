@@ -10,6 +10,8 @@ import java.util.UUID;
 
 import jakarta.json.*;
 
+import io.vavr.control.Option;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +39,23 @@ public record Request (UUID uuid, Request.Method method, JsonObject body)
         return new Request(uuid, method, obj);
     }
 
+    /** The request without the subscription UUID.
+     * Two requests with the same spec ask for the same thing. */
+    public JsonObject spec ()
+    {
+        return Json.createObjectBuilder(body)
+            .remove("uuid")
+            .build();
+    }
+
+    /** The maximum latency the client will accept, in milliseconds. */
+    public Option<Long> maxLatency ()
+    {
+        return Option.of(body.get("max-latency"))
+            .filter(v -> v instanceof JsonNumber)
+            .map(v -> ((JsonNumber)v).longValue());
+    }
+
     /* XXX messy */
     public boolean validate ()
     {
@@ -50,7 +69,7 @@ public record Request (UUID uuid, Request.Method method, JsonObject body)
             case SEARCH:
                 if (!body.containsKey("parent"))
                     return false;
-                return true;
+                return SearchFilter.validate(body);
             default:
                 return false;
         }
@@ -0,0 +1,87 @@
+/*
+ * Factory+ service api
+ * notify/v2 SEARCH child selection
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.notify;
+
+import jakarta.json.*;
+
+import io.vavr.collection.*;
+import io.vavr.control.Option;
+
+import uk.co.amrc.factoryplus.util.Response;
+
+/* The children a SEARCH request selects. The `filter` key is matched
+ * against the child bodies with JSON Merge Patch semantics, as in the
+ * JS service api; `children` restricts the search to a list of child
+ * paths. The whole request is available to handlers, which may accept
+ * selection keys of their own and apply them by emitting
+ * SearchUpdate.Select updates.
+ */
+public record SearchFilter (Option<JsonValue> match,
+    Option<Set<String>> children, JsonObject request)
+{
+    public static SearchFilter fromRequest (Request req)
+    {
+        var body = req.body();
+        Option<Set<String>> children = Option.of(body.get("children"))
+            .map(v -> HashSet.ofAll(v.asJsonArray().getValuesAs(JsonString.class))
+                .map(JsonString::getString));
+
+        return new SearchFilter(Option.of(body.get("filter")), children, body);
+    }
+
+    /* Called from Request.validate */
+    static boolean validate (JsonObject body)
+    {
+        var children = body.get("children");
+        if (children == null)
+            return true;
+        if (!(children instanceof JsonArray))
+            return false;
+        return Stream.ofAll(children.asJsonArray())
+            .forAll(v -> v instanceof JsonString);
+    }
+
+    /** A string parameter from the request. */
+    public Option<String> param (String key)
+    {
+        return Option.of(request.get(key))
+            .filter(v -> v instanceof JsonString)
+            .map(v -> ((JsonString)v).getString());
+    }
+
+    public boolean selects (String name, Response<JsonValue> res)
+    {
+        if (!children.forAll(s -> s.contains(name)))
+            return false;
+        return match.forAll(m -> res.isOK()
+            && matches(res.body().getOrNull(), m));
+    }
+
+    /* A body matches if applying the filter as a Merge Patch would not
+     * change it. A null in the filter requires the property to be
+     * absent; arrays are compared whole. */
+    static boolean matches (JsonValue cand, JsonValue filter)
+    {
+        if (filter.getValueType() != JsonValue.ValueType.OBJECT)
+            return filter.equals(cand);
+        if (cand == null || cand.getValueType() != JsonValue.ValueType.OBJECT)
+            return false;
+
+        var obj = cand.asJsonObject();
+        for (var e : filter.asJsonObject().entrySet()) {
+            var key = e.getKey();
+            var want = e.getValue();
+            if (want.getValueType() == JsonValue.ValueType.NULL) {
+                if (obj.containsKey(key))
+                    return false;
+            }
+            else if (!obj.containsKey(key) || !matches(obj.get(key), want))
+                return false;
+        }
+        return true;
+    }
+}
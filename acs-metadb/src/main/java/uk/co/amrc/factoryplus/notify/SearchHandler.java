@@ -0,0 +1,19 @@
+/*
+ * Factory+ service api
+ * notify/v2 SEARCH handler interface
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.notify;
+
+import io.reactivex.rxjava3.core.Observable;
+
+import io.vavr.collection.*;
+
+/* The filter is applied to the handler's output; the handler may use
+ * it to avoid producing children which will be filtered out. */
+public interface SearchHandler
+{
+    Observable<SearchUpdate> handle (Session sess, Map<String, String> args,
+        SearchFilter filter);
+}
@@ -8,6 +8,8 @@ package uk.co.amrc.factoryplus.notify;
 
 import jakarta.json.*;
 
+import io.reactivex.rxjava3.core.Observable;
+
 import io.vavr.collection.*;
 
 import org.slf4j.Logger;
@@ -19,11 +21,6 @@ public interface SearchUpdate
 {
     JsonObject content ();
 
-    default Iterable<SearchUpdate> diffFrom (SearchUpdate prev)
-    {
-        return List.of(this);
-    }
-
     default NotifyUpdate toUpdate (boolean initial)
     {
 
@@ -43,6 +40,25 @@ public interface SearchUpdate
         return new Child(name, response);
     }
 
+    static SearchUpdate select (Set<String> children)
+    {
+        return new Select(children);
+    }
+    static SearchUpdate seq (String cursor) { return new Seq(cursor); }
+
+    /** Merge a handler's selections into its other updates.
+     * Nothing is passed on until the first selection has arrived.
+     * SearchView treats no selection as selecting every child, so a
+     * full update before it would show the client the whole parent.
+     * The updates are subscribed to after the first selection. */
+    static Observable<SearchUpdate> selectedBy (Observable<SearchUpdate> updates,
+        Observable<SearchUpdate> selections)
+    {
+        return selections.publish(sel -> sel.take(1)
+            .concatWith(sel.mergeWith(updates)));
+    }
+    static SearchUpdate resumed () { return new Resumed(); }
+
     static SearchUpdate ofResponse (Response<Map<String, Response<JsonValue>>> children)
     {
         if (children.status() == 410)
@@ -86,33 +102,56 @@ public interface SearchUpdate
                 .add("response", Response.of(204).toJson())
                 .build();
         }
+    }
 
-        public Iterable<SearchUpdate> diffFrom (SearchUpdate upd)
+    public record Child (String name, Response<JsonValue> response) implements SearchUpdate
+    {
+        public JsonObject content ()
         {
-            if (!(upd instanceof Full))
-                return List.of(this);
-            var prev = (Full)upd;
+            return Json.createObjectBuilder()
+                .add("child", name)
+                .add("response", response.toJson())
+                .build();
+        }
+    }
 
-            var updated = this.children.toStream()
-                .reject(prev.children::contains)
-                .map(e -> SearchUpdate.child(e._1(), e._2()));
+    /* This is not sent to the client. A handler emits it to restrict
+     * the children the client sees, for selections which depend on
+     * more than the child's own response. */
+    public record Select (Set<String> children) implements SearchUpdate
+    {
+        public JsonObject content () { return JsonValue.EMPTY_JSON_OBJECT; }
+    }
 
-            var removed = prev.children.keySet()
-                .diff(this.children.keySet())
-                .toStream()
-                .map(n -> SearchUpdate.child(n, Response.empty()));
+    /* This is not sent to the client. It gives the resume cursor for
+     * the updates which follow. */
+    public record Seq (String cursor) implements SearchUpdate
+    {
+        public JsonObject content () { return JsonValue.EMPTY_JSON_OBJECT; }
+    }
 
-            return Stream.concat(updated, removed);
+    /* Sent in place of a full update when we resume a subscription.
+     * The client keeps the children it had and we send the changes it
+     * missed as child updates. */
+    public record Resumed () implements SearchUpdate
+    {
+        public JsonObject content ()
+        {
+            return Json.createObjectBuilder()
+                .add("resumed", true)
+                .add("response", Response.of(204).toJson())
+                .build();
         }
     }
 
-    public record Child (String name, Response<JsonValue> response) implements SearchUpdate
+    /* An update with the cursor the client should resume from */
+    public record Sequenced (SearchUpdate update, String cursor)
+        implements SearchUpdate
     {
         public JsonObject content ()
         {
-            return Json.createObjectBuilder()
-                .add("child", name)
-                .add("response", response.toJson())
+            return Json.createObjectBuilder(update.content())
+                .add("seq", cursor)
                 .build();
         }
     }
@@ -0,0 +1,187 @@
+/*
+ * Factory+ service api
+ * notify/v2 SEARCH subscription state
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.notify;
+
+import jakarta.json.*;
+
+import io.vavr.collection.*;
+import io.vavr.control.Option;
+
+import uk.co.amrc.factoryplus.util.Response;
+
+/* The state of a SEARCH subscription: the unfiltered children of the
+ * parent (if we have a full update), the selection the handler has
+ * asked for, and what the client has been told. The handler sends a
+ * full update followed by a child update for each change. Each update
+ * gives a new view and the updates to send the client; for a child or
+ * selection update we only look at the children it affects.
+ *
+ * Children which leave the selection but still exist are reported as
+ * 412, as described in the notify/v2 spec.
+ *
+ * A resumed subscription starts without a full update, so we don't
+ * know what the client has. We send every change which passes the
+ * filter, and a 412 or 404 for every change which doesn't. Selection
+ * updates cannot be applied until a full update arrives, so handlers
+ * must not resume searches which use them.
+ */
+record SearchView (
+    SearchFilter filter,
+    Option<Map<String, Response<JsonValue>>> all,
+    Option<Set<String>> selected,
+    SearchUpdate shown,
+    Option<String> cursor)
+{
+    record Step (SearchView view, Iterable<SearchUpdate> updates) { }
+
+    static Step initial (SearchFilter filter)
+    {
+        /* It doesn't matter what we have shown as long as it's not a
+         * Full update */
+        var view = new SearchView(filter, Option.none(), Option.none(),
+            SearchUpdate.notFound(), Option.none());
+        return new Step(view, List.empty());
+    }
+
+    Step next (SearchUpdate upd)
+    {
+        if (upd instanceof SearchUpdate.Seq)
+            return new Step(withCursor(((SearchUpdate.Seq)upd).cursor()),
+                List.empty());
+
+        var step = apply(upd);
+        var view = step.view();
+        return new Step(view, List.ofAll(step.updates()).map(view::stamp));
+    }
+
+    private Step apply (SearchUpdate upd)
+    {
+        if (upd instanceof SearchUpdate.Full)
+            return full(((SearchUpdate.Full)upd).children());
+        if (upd instanceof SearchUpdate.Child)
+            return child((SearchUpdate.Child)upd);
+        if (upd instanceof SearchUpdate.Select)
+            return select(((SearchUpdate.Select)upd).children());
+
+        /* The parent is not readable, or we are resuming; pass this
+         * straight through */
+        return new Step(with(Option.none(), selected, upd), List.of(upd));
+    }
+
+    private SearchView with (Option<Map<String, Response<JsonValue>>> all,
+        Option<Set<String>> selected, SearchUpdate shown)
+    {
+        return new SearchView(filter, all, selected, shown, cursor);
+    }
+
+    private SearchView withCursor (String cursor)
+    {
+        return new SearchView(filter, all, selected, shown, Option.some(cursor));
+    }
+
+    private SearchUpdate stamp (SearchUpdate upd)
+    {
+        if (!(upd instanceof SearchUpdate.Full
+                || upd instanceof SearchUpdate.Child
+                || upd instanceof SearchUpdate.Resumed))
+            return upd;
+        return cursor
+            .map(c -> (SearchUpdate)new SearchUpdate.Sequenced(upd, c))
+            .getOrElse(upd);
+    }
+
+    private boolean selects (Option<Set<String>> sel, String name,
+        Response<JsonValue> res)
+    {
+        return sel.forAll(s -> s.contains(name))
+            && filter.selects(name, res);
+    }
+
+    private Option<Response<JsonValue>> visible (
+        Map<String, Response<JsonValue>> children, Option<Set<String>> sel,
+        String name)
+    {
+        return children.get(name)
+            .filter(r -> selects(sel, name, r));
+    }
+
+    private Step full (Map<String, Response<JsonValue>> children)
+    {
+        if (!(shown instanceof SearchUpdate.Full)) {
+            var full = SearchUpdate.full(children
+                .filter((n, r) -> visible(children, selected, n).isDefined()));
+            return new Step(with(Option.some(children), selected, full),
+                List.of(full));
+        }
+
+        var shownKids = ((SearchUpdate.Full)shown).children();
+        return diff(children, selected,
+            shownKids.keySet().union(children.keySet()));
+    }
+
+    private Step child (SearchUpdate.Child upd)
+    {
+        var name = upd.name();
+        var res = upd.response();
+
+        if (all.isEmpty()) {
+            /* A child update only makes sense after a full update,
+             * unless we are resuming */
+            if (!(shown instanceof SearchUpdate.Resumed))
+                return new Step(this, List.empty());
+            if (res.isEmpty() || selects(selected, name, res))
+                return new Step(this, List.of(upd));
+            return new Step(this,
+                List.of(SearchUpdate.child(name, Response.of(412))));
+        }
+
+        var children = res.isEmpty()
+            ? all.get().remove(name) : all.get().put(name, res);
+        return diff(children, selected, List.of(name));
+    }
+
+    private Step select (Set<String> sel)
+    {
+        var nsel = Option.some(sel);
+        if (all.isEmpty())
+            return new Step(with(all, nsel, shown), List.empty());
+
+        var children = all.get();
+        var changed = selected
+            .map(old -> old.diff(sel).union(sel.diff(old)))
+            .getOrElse(children::keySet);
+        return diff(children, nsel, changed);
+    }
+
+    private Step diff (Map<String, Response<JsonValue>> children,
+        Option<Set<String>> sel, Iterable<String> names)
+    {
+        var shownKids = ((SearchUpdate.Full)shown).children();
+        var updates = List.<SearchUpdate>empty();
+
+        for (var name : names) {
+            var prev = shownKids.get(name);
+            var next = visible(children, sel, name);
+
+            if (next.isDefined()) {
+                if (prev.equals(next))
+                    continue;
+                shownKids = shownKids.put(name, next.get());
+                updates = updates.prepend(SearchUpdate.child(name, next.get()));
+            }
+            else if (prev.isDefined()) {
+                shownKids = shownKids.remove(name);
+                updates = updates.prepend(SearchUpdate.child(name,
+                    children.containsKey(name)
+                        ? Response.of(412) : Response.empty()));
+            }
+        }
+
+        var view = with(Option.some(children), sel, SearchUpdate.full(shownKids));
+        return new Step(view, updates.reverse());
+    }
+}
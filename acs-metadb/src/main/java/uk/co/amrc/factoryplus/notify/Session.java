@@ -45,17 +45,22 @@ public class Session
     }
 
     public String upn () { return upn; }
+    public boolean isRoot () { return isRoot; }
+    NotifyV2 notifyV2 () { return notify; }
 
     public Session start (TextWebsocket ws)
     {
         log("New client");
 
-        var send = ws.getSender();
+        var send = ws.getSendQueue();
         handleAuth(ws) 
-            .doFinally(() -> log("Client closed"))
+            .doFinally(() -> {
+                log("Client closed");
+                notify.closed(send);
+            })
             .compose(this::handleRequests)
             .subscribe(
-                msg -> send.onNext(msg),
+                msg -> send.send(msg.key(), msg.text()),
                 err -> {
                     log("Notify error:", err);
                     send.onComplete();
@@ -130,17 +135,19 @@ public class Session
         finally { jr.close(); }
     }
 
-    private Observable<String> handleRequests (Observable<String> msgs)
+    /* An outgoing message with its conflation key */
+    private record Outgoing (Object key, String text) { }
+
+    private Observable<Outgoing> handleRequests (Observable<String> msgs)
     {
         return msgs
             .map(Session::readJson)
             .doOnNext(v -> log("Client req: {}", v))
             .map(Request::fromJson)
-            .publish(this::buildUpdates)
-            .map(JsonValue::toString);
+            .publish(this::buildUpdates);
     }
 
-    private Observable<JsonValue> buildUpdates (Observable<Request> reqs)
+    private Observable<Outgoing> buildUpdates (Observable<Request> reqs)
     {
         /* no partition() in RxJava :( */
         var opens = reqs.filter(r -> r.method() != Request.Method.CLOSE);
@@ -161,6 +168,9 @@ public class Session
                 return subscription(req)
                     /* XXX this is a hack */
                     .distinctUntilChanged()
+                    /* The sequence may be shared, so the first update
+                     * we see may not be the first it produced */
+                    .zipWith(IsFirst.isFirst(), NotifyUpdate::initial)
                     /* pull in the 410s from the closes sequence */
                     .mergeWith(closed)
                     .onErrorReturn(e -> {
@@ -169,7 +179,8 @@ public class Session
                     })
                     /* takeUntil emits the final value */
                     .takeUntil(upd -> !upd.ok())
-                    .map(upd -> upd.toJson(uuid))
+                    .map(upd -> new Outgoing(
+                        upd.conflationKey(uuid), upd.toJsonString(uuid)))
                     .doFinally(() -> log("Sub closed: {}", uuid));
             });
     }
@@ -222,5 +233,31 @@ public class Session
                 .distinctUntilChanged();
         };
     }
+
+    /** Apply ACLs to a sequence of changes.
+     * applyACL repeats the latest value when permission is granted,
+     * which is no use when the values are deltas. Instead we subscribe
+     * to the source afresh each time permission is granted, so it must
+     * start with the complete state.
+     */
+    public <T> Observable<Response<T>> switchACL (
+        UUID permission, UUID target, Observable<T> src)
+    {
+        log.info("Applying notify ACLs for {}", upn);
+
+        Observable<Response<T>> resps = src.map(Response::ok);
+
+        /* For root requests we must not contact the Auth service. */
+        if (isRoot) {
+            log.info("Principal {} is root, skipping ACLs", upn);
+            return resps;
+        }
+
+        return watchACL(permission, target)
+            .distinctUntilChanged(Response::status)
+            .switchMap(ok -> ok.<Observable<Response<T>>>ifOK(
+                u -> resps,
+                st -> Observable.just(Response.of(st))));
+    }
 }
 
@@ -0,0 +1,21 @@
+/*
+ * Factory+ service API
+ * Deferred authentication annotation
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.providers;
+
+import java.lang.annotation.*;
+
+/** Marks a resource as handling authentication asynchronously.
+ *
+ * The AuthFilter will check the request has credentials but will not
+ * wait for them to be verified. The resource must obtain the security
+ * context from AuthFilter.securityContext, and must not assume the
+ * request is authenticated until that Single has succeeded.
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface AsyncAuth { }
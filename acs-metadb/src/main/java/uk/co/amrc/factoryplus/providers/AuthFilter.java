@@ -17,6 +17,8 @@ import jakarta.ws.rs.container.*;
 import jakarta.ws.rs.core.*;
 import jakarta.ws.rs.ext.*;
 
+import io.reactivex.rxjava3.core.Single;
+
 import io.vavr.control.Option;
 
 import org.slf4j.Logger;
@@ -33,21 +35,60 @@ public class AuthFilter implements ContainerRequestFilter, ContainerResponseFilt
 {
     private static final Logger log = LoggerFactory.getLogger(AuthFilter.class);
 
+    /* The request property holding the pending auth for @AsyncAuth
+     * resources. */
+    private static final String DEFERRED = AuthFilter.class.getName() + ".deferred";
+
     @Context private AuthProvider provider;
+    @Context private ResourceInfo resource;
 
     /* This is the request filter. */
     public void filter (ContainerRequestContext req)
     {
         var auth = req.getHeaderString("Authorization");
 
-        /* It is important this call blocks this thread, and throws any
-         * exception coming from the Single. Otherwise the request
-         * processing will continue before auth has been checked. */
+        /* A missing or malformed header throws here. */
         var ctx = provider.authenticate(auth)
-            .doOnError(e -> log.info("Auth failed: {}", e.toString()))
-            .blockingGet();
+            .doOnError(e -> log.info("Auth failed: {}", e.toString()));
+
+        /* JAX-RS filters cannot suspend the request, so for async
+         * resources we hand the pending auth over to the resource
+         * instead of waiting for it. The resource must not do anything
+         * until it has completed. */
+        if (isAsync()) {
+            req.setProperty(DEFERRED, ctx.cache());
+            return;
+        }
+
+        /* Otherwise it is important this call blocks this thread, and
+         * throws any exception coming from the Single. Otherwise the
+         * request processing will continue before auth has been
+         * checked. */
+        req.setSecurityContext(ctx.blockingGet());
+    }
+
+    private boolean isAsync ()
+    {
+        return Option.of(resource.getResourceMethod())
+            .exists(m -> m.isAnnotationPresent(AsyncAuth.class)
+                || resource.getResourceClass().isAnnotationPresent(AsyncAuth.class));
+    }
+
+    /** Fetch the security context for a request.
+     * For @AsyncAuth resources this completes once authentication has
+     * succeeded, and fails if it fails. */
+    @SuppressWarnings("unchecked")
+    public static Single<SecurityContext> securityContext (ContainerRequestContext req)
+    {
+        var deferred = (Single<FPSecurityContext>)req.getProperty(DEFERRED);
+        if (deferred == null)
+            return Single.just(req.getSecurityContext());
 
-        req.setSecurityContext(ctx);
+        /* The response filter needs this for the GSSAPI token. */
+        return deferred.map(ctx -> {
+            req.setSecurityContext(ctx);
+            return (SecurityContext)ctx;
+        });
     }
 
     /* This is the response filter. */
@@ -0,0 +1,54 @@
+/*
+ * Factory+ metadata database
+ * Structured app mapping tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.io.StringReader;
+
+import jakarta.json.*;
+
+import org.apache.jena.vocabulary.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class AppMappingTest {
+
+    private static JsonValue schema (String rdf)
+    {
+        var json = """
+            { "type": "object",
+              "properties": { "x": { "type": "string", "rdf": "%s" } } }
+        """.formatted(rdf);
+        return Json.createReader(new StringReader(json)).readValue();
+    }
+
+    @Test
+    public void compilesOrdinaryProperty ()
+    {
+        assertTrue(AppMapping.compile(schema("example/port")).isDefined());
+        assertTrue(AppMapping.compile(schema("http://example.com/port"))
+            .isDefined());
+    }
+
+    @Test
+    public void rejectsReservedProperties ()
+    {
+        var reserved = new String[] {
+            RDF.type.getURI(),
+            RDFS.subClassOf.getURI(),
+            OWL.sameAs.getURI(),
+            "core/uuid",
+            "core/primary",
+            "app/value",
+            Vocab.NS + "core/rank",
+        };
+        for (var rdf : reserved)
+            assertThrows(RdfErr.BadMapping.class,
+                () -> AppMapping.compile(schema(rdf)), rdf);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Factory+ metadata database
+ * Structured app update tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AppUpdaterTest {
+
+    /* The Registration entry carries the object's rank, which comes
+     * from its classes. */
+    @Test
+    public void classRankChangeAffectsMembers (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var req = TestStore.request(store);
+
+        store.executeWrite(() -> {
+            var klass = store.createObject(Vocab.Class.R1Class);
+            var obj = store.createObject(klass);
+            var other = store.createObject(Vocab.Class.R1Class);
+
+            var update = TestStore.change(store, () ->
+                store.direct().add(klass, Vocab.rank, Util.intLiteral(0)));
+            var affected = new AppUpdater(req).affectedObjects(update);
+
+            assertTrue(affected.contains(obj));
+            assertFalse(affected.contains(other));
+        });
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Factory+ metadata database
+ * Prepared query benchmark
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.query.*;
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/* Compares a prepared query against Jena's substitution path, for a
+ * UUID lookup as used by most requests and for the ZFC relation rank
+ * check. This is not run by the tests; run it with
+ *
+ *  mvn test-compile exec:java \
+ *      -Dexec.mainClass=uk.co.amrc.factoryplus.metadb.db.PreparedQueryBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreparedQueryBench
+{
+    private static final Query Q_lookup = Vocab.query("""
+        select ?obj where { ?obj <core/uuid> ?uuid. }
+    """);
+    private static final Query Q_relRank = Vocab.query("""
+        select ?objU ?classU
+        where {
+            ?obj <core/uuid> ?objU;
+                rdf:type/<core/rank> ?objR.
+            ?class <core/uuid> ?classU; 
+                rdf:type/<core/rank> ?classR.
+            graph <graph/direct> { ?obj ?prop ?class. }
+            filter (?classR != ?objR + ?offset)
+        }
+    """);
+
+    private Path dir;
+    private RdfStore store;
+    private RDFNode uuid;
+
+    @Setup
+    public void setup () throws IOException
+    {
+        dir = Files.createTempDirectory("metadb-bench");
+        store = TestStore.open(dir);
+        var obj = store.calculateWrite(() -> TestStore.object(store));
+        uuid = store.calculateRead(() ->
+            store.direct().getProperty(obj, Vocab.uuid).getObject());
+    }
+
+    @TearDown
+    public void teardown () throws IOException
+    {
+        try (var files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder())
+                .forEach(f -> f.toFile().delete());
+        }
+    }
+
+    private int substituted (Query query, Object... substs)
+    {
+        return store.calculateRead(() -> {
+            var exec = QueryExecution.dataset(store.dataset()).query(query);
+            for (var i = 0; i < substs.length; i += 2)
+                exec.substitution((String)substs[i], (RDFNode)substs[i + 1]);
+            try (var qe = exec.build()) {
+                var rs = qe.execSelect();
+                var n = 0;
+                for (; rs.hasNext(); rs.next())
+                    n++;
+                return n;
+            }
+        });
+    }
+
+    private int prepared (Query query, Object... substs)
+    {
+        return store.calculateRead(() ->
+            store.listQuery(query, substs).size());
+    }
+
+    @Benchmark
+    public int lookupSubstituted ()
+    {
+        return substituted(Q_lookup, "uuid", uuid);
+    }
+
+    @Benchmark
+    public int lookupPrepared ()
+    {
+        return prepared(Q_lookup, "uuid", uuid);
+    }
+
+    @Benchmark
+    public int relRankSubstituted ()
+    {
+        return substituted(Q_relRank,
+            "prop", RDF.type, "offset", Util.intLiteral(1));
+    }
+
+    @Benchmark
+    public int relRankPrepared ()
+    {
+        return prepared(Q_relRank,
+            "prop", RDF.type, "offset", Util.intLiteral(1));
+    }
+
+    public static void main (String[] args) throws Exception
+    {
+        var opts = new OptionsBuilder()
+            .include(PreparedQueryBench.class.getSimpleName())
+            .build();
+        new Runner(opts).run();
+    }
+}
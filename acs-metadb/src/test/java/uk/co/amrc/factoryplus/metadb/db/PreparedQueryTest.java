@@ -0,0 +1,128 @@
+/*
+ * Factory+ metadata database
+ * Prepared query tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.query.*;
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* The prepared queries must give the same results as executing the
+ * Query with Jena's own substitution, wherever the bound variables
+ * appear. */
+public class PreparedQueryTest {
+
+    private static final Query Q_pattern = Vocab.query("""
+        select ?objU where { ?obj <core/uuid> ?objU; a ?class. }
+    """);
+    private static final Query Q_projected = Vocab.query("""
+        select ?obj ?class where { ?obj a ?class. }
+    """);
+    private static final Query Q_filter = Vocab.query("""
+        select ?objU where { ?obj <core/uuid> ?objU. filter (?objU != ?skip) }
+    """);
+    private static final Query Q_bind = Vocab.query("""
+        select ?obj ?tag where { ?obj a ?class. bind (?value as ?tag) }
+    """);
+    /* As ZFC.V_relRank; ?offset only appears in the filter */
+    private static final Query Q_relRank = Vocab.query("""
+        select ?objU ?classU
+        where {
+            ?obj <core/uuid> ?objU;
+                rdf:type/<core/rank> ?objR.
+            ?class <core/uuid> ?classU; 
+                rdf:type/<core/rank> ?classR.
+            graph <graph/direct> { ?obj ?prop ?class. }
+            filter (?classR != ?objR + ?offset)
+        }
+    """);
+
+    private static Set<Map<String, RDFNode>> rows (ResultSet rs)
+    {
+        var rows = new HashSet<Map<String, RDFNode>>();
+        rs.forEachRemaining(qs -> {
+            var row = new HashMap<String, RDFNode>();
+            rs.getResultVars().forEach(v -> row.put(v, qs.get(v)));
+            rows.add(row);
+        });
+        return rows;
+    }
+
+    private static Set<Map<String, RDFNode>> substituted (RdfStore store,
+        Query query, Object... substs)
+    {
+        var exec = QueryExecution.dataset(store.dataset()).query(query);
+        for (var i = 0; i < substs.length; i += 2)
+            exec.substitution((String)substs[i], (RDFNode)substs[i + 1]);
+        try (var qe = exec.build()) {
+            return rows(qe.execSelect());
+        }
+    }
+
+    private static Set<Map<String, RDFNode>> prepared (RdfStore store,
+        Query query, Object... substs)
+    {
+        var rows = new HashSet<Map<String, RDFNode>>();
+        store.listQuery(query, substs).forEach(qs -> {
+            var row = new HashMap<String, RDFNode>();
+            query.getResultVars().forEach(v -> row.put(v, qs.get(v)));
+            rows.add(row);
+        });
+        return rows;
+    }
+
+    private static Set<Map<String, RDFNode>> same (RdfStore store,
+        Query query, Object... substs)
+    {
+        var expected = substituted(store, query, substs);
+        assertEquals(expected, prepared(store, query, substs));
+        return expected;
+    }
+
+    @Test
+    public void matchesSubstitution (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var obj = store.calculateWrite(() -> TestStore.object(store));
+        var objU = store.calculateRead(() ->
+            store.direct().getProperty(obj, Vocab.uuid).getObject());
+
+        store.executeRead(() -> {
+            assertFalse(same(store, Q_pattern, "class", RDFS.Class).isEmpty());
+            assertFalse(same(store, Q_projected, "class", RDFS.Class).isEmpty());
+            same(store, Q_pattern);
+
+            var all = same(store, Q_filter, "skip", Vocab.uuidLiteral(
+                java.util.UUID.randomUUID()));
+            var skipped = same(store, Q_filter, "skip", objU);
+            assertEquals(all.size() - 1, skipped.size());
+
+            var tagged = same(store, Q_bind, "class", RDFS.Class,
+                "value", ResourceFactory.createPlainLiteral("x"));
+            assertFalse(tagged.isEmpty());
+            assertTrue(tagged.stream().allMatch(r ->
+                r.get("tag").equals(ResourceFactory.createPlainLiteral("x"))));
+
+            /* Membership is offset 1, so offset 0 selects every
+             * membership in the core schema and 1 selects none. */
+            assertFalse(same(store, Q_relRank, "prop", RDF.type,
+                "offset", Util.intLiteral(0)).isEmpty());
+            assertTrue(same(store, Q_relRank, "prop", RDF.type,
+                "offset", Util.intLiteral(1)).isEmpty());
+        });
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Factory+ metadata database
+ * Object rank cache tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.nio.file.Path;
+
+import org.apache.jena.vocabulary.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RankCacheTest {
+
+    @Test
+    public void classRankChangeInvalidates (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var cache = new RankCache();
+
+        store.executeWrite(() -> {
+            var klass = store.createObject(Vocab.Class.R1Class);
+            var obj = store.createObject(klass);
+            var other = store.createObject(Vocab.Class.R1Class);
+            cache.putRank(obj, 0);
+            cache.putRank(other, 1);
+            cache.putRankClass(1, Vocab.Class.R1Class);
+
+            var update = TestStore.change(store, () ->
+                store.direct().add(klass, Vocab.rank, Util.intLiteral(0)));
+            assertTrue(update.changesRank(obj));
+            assertTrue(update.changesRankClasses());
+
+            cache.update(update, store.derived());
+            assertTrue(cache.rank(obj).isEmpty());
+            assertTrue(cache.rankClass(1).isEmpty());
+            assertEquals(1, cache.rank(other).get());
+        });
+    }
+
+    @Test
+    public void membershipChangeKeepsRankClasses (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var cache = new RankCache();
+
+        store.executeWrite(() -> {
+            var obj = store.createObject(Vocab.Class.R1Class);
+            cache.putRankClass(1, Vocab.Class.R1Class);
+
+            var update = TestStore.change(store, () ->
+                store.direct().add(obj, RDF.type, Vocab.Class.Individual));
+            assertFalse(update.changesRankClasses());
+
+            cache.update(update, store.derived());
+            assertEquals(Vocab.Class.R1Class, cache.rankClass(1).get());
+        });
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Factory+ metadata database
+ * Config schema tracker tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.io.StringReader;
+import java.nio.file.Path;
+
+import jakarta.json.*;
+
+import io.vavr.collection.List;
+import io.vavr.control.Option;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SchemaTrackerTest {
+
+    private static final String SCHEMA = """
+        { "type": "object",
+          "required": ["name"],
+          "properties": { "name": { "type": "string" } } }
+    """;
+
+    private static final String OTHER = """
+        { "type": "object",
+          "required": ["id"],
+          "properties": { "id": { "type": "integer" } } }
+    """;
+
+    private static JsonValue json (String text)
+    {
+        return Json.createReader(new StringReader(text)).readValue();
+    }
+
+    @Test
+    public void rejectsInvalidConfig (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var app = store.calculateWrite(() -> {
+            var a = TestStore.object(store);
+            TestStore.config(store, Vocab.App.ConfigSchema, a, SCHEMA);
+            return a;
+        });
+
+        var schemas = store.schemaTracker();
+        schemas.start();
+
+        store.executeRead(() -> {
+            assertTrue(schemas.validate(app, json("{\"name\": \"x\"}")));
+            assertFalse(schemas.validate(app, json("{}")));
+            assertFalse(schemas.validate(app, json("{\"name\": 3}")));
+        });
+    }
+
+    @Test
+    public void schemaConflictsWithExistingConfig (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var schemas = store.schemaTracker();
+        schemas.start();
+
+        assertThrows(RdfErr.SchemaConflict.class, () ->
+            store.executeWrite(() -> {
+                var app = TestStore.object(store);
+                var obj = TestStore.object(store);
+                TestStore.config(store, app, obj, "{}");
+                TestStore.config(store, Vocab.App.ConfigSchema, app, SCHEMA);
+                schemas.updateSchemas(List.of(app));
+            }));
+    }
+
+    @Test
+    public void recompilesOnlyDependents (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var schemas = store.schemaTracker();
+
+        /* b refers to a; c is independent */
+        var a = store.calculateWrite(() -> TestStore.object(store));
+        var b = store.calculateWrite(() -> TestStore.object(store));
+        var c = store.calculateWrite(() -> TestStore.object(store));
+        var entry = store.calculateWrite(() -> {
+            TestStore.config(store, Vocab.App.ConfigSchema, b,
+                "{ \"$ref\": \"" + a.getURI() + "\" }");
+            TestStore.config(store, Vocab.App.ConfigSchema, c, SCHEMA);
+            return TestStore.config(store, Vocab.App.ConfigSchema, a, SCHEMA);
+        });
+        schemas.start();
+
+        var before = List.of(a, b, c).map(schemas::compiledValidator);
+        store.executeWrite(() -> {
+            store.direct().removeAll(entry, null, null);
+            TestStore.config(store, Vocab.App.ConfigSchema, a, OTHER);
+            schemas.updateSchemas(List.of(a));
+        });
+        var after = List.of(a, b, c).map(schemas::compiledValidator);
+
+        assertNotSame(before.get(0).get(), after.get(0).get());
+        assertNotSame(before.get(1).get(), after.get(1).get());
+        assertSame(before.get(2).get(), after.get(2).get());
+
+        /* An unchanged schema recompiles nothing */
+        store.executeWrite(() -> schemas.updateSchemas(List.of(c)));
+        assertSame(after.get(2).get(), schemas.compiledValidator(c).get());
+
+        store.executeRead(() -> {
+            assertTrue(schemas.validate(b, json("{\"id\": 3}")));
+            assertFalse(schemas.validate(b, json("{\"name\": \"x\"}")));
+        });
+    }
+
+    @Test
+    public void releasedCheckIsForgotten (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var schemas = store.schemaTracker();
+        schemas.start();
+
+        var app = store.calculateWrite(() -> TestStore.object(store));
+        var schema = Option.some(json(SCHEMA));
+        SchemaTracker.Check first = store.calculateRead(() -> schemas.prepare(app, schema));
+        SchemaTracker.Check second = store.calculateRead(() -> schemas.prepare(app, schema));
+
+        /* A write which never happens must not leave its check behind */
+        schemas.check(first);
+        assertSame(first, schemas.pendingCheck(app).get());
+        schemas.release(first);
+        assertTrue(schemas.pendingCheck(app).isEmpty());
+
+        /* Releasing an old check leaves a newer one alone */
+        schemas.check(first);
+        schemas.check(second);
+        schemas.release(first);
+        assertSame(second, schemas.pendingCheck(app).get());
+        schemas.release(second);
+        assertTrue(schemas.pendingCheck(app).isEmpty());
+    }
+
+    @Test
+    public void rewriteOfInvalidConfigIsRejected (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var schemas = store.schemaTracker();
+
+        /* A config stored before its schema was enforced */
+        var app = store.calculateWrite(() -> TestStore.object(store));
+        var obj = store.calculateWrite(() -> TestStore.object(store));
+        store.executeWrite(() -> {
+            TestStore.config(store, app, obj, "{}");
+            TestStore.config(store, Vocab.App.ConfigSchema, app, SCHEMA);
+        });
+        schemas.start();
+
+        var req = TestStore.request(store);
+        assertThrows(RdfErr.BadConfig.class, () ->
+            store.executeWrite(() ->
+                new ConfigEntry(req, app, obj).putValue(json("{}"))));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Factory+ metadata database
+ * RdfStore fixture for tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.nio.file.Path;
+import java.security.Principal;
+import java.util.Map;
+import java.util.UUID;
+
+import jakarta.ws.rs.core.SecurityContext;
+
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.*;
+
+import uk.co.amrc.factoryplus.client.FPServiceClient;
+
+/* An RdfStore on a fresh TDB with the core schema loaded. We don't
+ * start the store's write queue or the change feed, and nothing here
+ * contacts other services; tests write with executeWrite or their own
+ * WriteQueue. */
+class TestStore
+{
+    static RdfStore open (Path dir)
+    {
+        var store = new RdfStore(new FPServiceClient(Map.of()), null,
+            dir.toString());
+        store.bootstrap();
+        return store;
+    }
+
+    /* A request with no ACL; it can only be used for callbacks which
+     * don't check permissions. */
+    static RequestHandler request (RdfStore store)
+    {
+        var ctx = new SecurityContext() {
+            public Principal getUserPrincipal () { return () -> "test@TEST"; }
+            public boolean isUserInRole (String role) { return false; }
+            public boolean isSecure () { return true; }
+            public String getAuthenticationScheme () { return "test"; }
+        };
+        return new RequestHandler(store, ctx);
+    }
+
+    /* A resource with a UUID. This is enough for the config queries;
+     * it is not a full object with a class and rank. TXN */
+    static Resource object (RdfStore store)
+    {
+        var uuid = UUID.randomUUID();
+        var obj = Vocab.uuidResource(uuid);
+        store.direct().add(obj, Vocab.uuid, Vocab.uuidLiteral(uuid));
+        return obj;
+    }
+
+    /* A config entry, stored as ConfigEntry.putRawValue stores it.
+     * Returns the entry. TXN */
+    static Resource config (RdfStore store, Resource app, Resource obj, String json)
+    {
+        var uuid = UUID.randomUUID();
+        var entry = Vocab.configResource(uuid);
+        var direct = store.direct();
+
+        direct.add(entry, Vocab.App.app, app);
+        direct.add(entry, Vocab.App.forP, obj);
+        direct.add(entry, Vocab.App.value,
+            ResourceFactory.createTypedLiteral(json, RDF.dtRDFJSON));
+        direct.add(entry, Vocab.App.etag, Vocab.uuidLiteral(uuid));
+        return entry;
+    }
+
+    /* Make a tracked change to the direct graph. TXN */
+    static ModelUpdate change (RdfStore store, Runnable r)
+    {
+        var update = new ModelUpdate();
+        store.direct().register(update);
+        try {
+            r.run();
+        }
+        finally {
+            store.direct().unregister(update);
+        }
+        return update;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Factory+ metadata database
+ * Write queue tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.rdf.model.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WriteQueueTest {
+
+    @Test
+    public void failedRequestKeepsExistingTriples (@TempDir Path dir)
+        throws Exception
+    {
+        var store = TestStore.open(dir);
+        var obj = store.calculateWrite(() -> TestStore.object(store));
+        var existing = store.calculateRead(() ->
+            store.direct().listStatements(obj, Vocab.uuid, (RDFNode)null)
+                .next());
+        var added = ResourceFactory.createStatement(obj, Vocab.primary,
+            Vocab.Class.Object);
+
+        /* Queue both before starting so they run in one batch */
+        var queue = new WriteQueue(store);
+        var ok = queue.submitAsync(TestStore.request(store), r -> {
+            r.db().direct().add(added);
+            return 1;
+        });
+        var failed = queue.submitAsync(TestStore.request(store), r -> {
+            r.db().direct().add(existing);
+            throw new IllegalStateException("Request failed");
+        });
+        queue.start();
+
+        assertEquals(1, ok.get(10, TimeUnit.SECONDS));
+        var err = assertThrows(ExecutionException.class,
+            () -> failed.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, err.getCause());
+
+        store.executeRead(() -> {
+            assertTrue(store.direct().contains(existing));
+            assertTrue(store.direct().contains(added));
+        });
+    }
+
+    /* A graph PUT in a batch which is replayed must load its data
+     * again, not just empty the graph. */
+    @Test
+    public void replayedGraphPutReloads (@TempDir Path dir)
+        throws Exception
+    {
+        var store = TestStore.open(dir);
+        var extra = ResourceFactory.createStatement(
+            ResourceFactory.createResource("http://example.com/s"),
+            ResourceFactory.createProperty("http://example.com/p"),
+            ResourceFactory.createPlainLiteral("x"));
+        var data = store.calculateRead(() ->
+            ModelFactory.createDefaultModel().add(store.direct()));
+        data.add(extra);
+
+        var queue = new WriteQueue(store);
+        var put = queue.submitAsync(TestStore.request(store), r -> {
+            r.modelUpdate().untracked();
+            r.db().loadGraph(r.db().direct(), data, true);
+            return 1;
+        });
+        var failed = queue.submitAsync(TestStore.request(store), r -> {
+            throw new IllegalStateException("Request failed");
+        });
+        queue.start();
+
+        assertEquals(1, put.get(10, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class,
+            () -> failed.get(10, TimeUnit.SECONDS));
+
+        store.executeRead(() -> {
+            assertTrue(store.direct().contains(extra));
+            assertEquals(data.size(), store.direct().size());
+        });
+    }
+}
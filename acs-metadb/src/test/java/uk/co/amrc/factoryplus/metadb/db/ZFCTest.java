@@ -0,0 +1,74 @@
+/*
+ * Factory+ metadata database
+ * Class structure validation tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.metadb.db;
+
+import java.nio.file.Path;
+
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.vocabulary.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ZFCTest {
+
+    @Test
+    public void fullCheckFindsBadMembership (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var zfc = new ZFC(store);
+
+        /* Two individuals; one cannot be a member of the other */
+        store.executeWrite(() -> {
+            var a = store.createObject(Vocab.Time.Instant);
+            var b = store.createObject(Vocab.Time.Instant);
+            store.direct().add(a, RDF.type, b);
+        });
+
+        store.executeRead(() -> {
+            zfc.validateInvariants();
+            assertThrows(RdfErr.InvalidRels.class, zfc::validateAll);
+        });
+    }
+
+    @Test
+    public void updateCheckFindsBadMembership (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var zfc = new ZFC(store);
+
+        store.executeWrite(() -> {
+            var a = store.createObject(Vocab.Time.Instant);
+            var b = store.createObject(Vocab.Time.Instant);
+            var update = TestStore.change(store, () ->
+                store.direct().add(a, RDF.type, b));
+            assertThrows(RdfErr.InvalidRels.class,
+                () -> zfc.validateUpdate(update));
+        });
+    }
+
+    /* Giving a class a rank gives its members a second rank. With rank
+     * 0 the class's own checks, including its members' relation ranks,
+     * still pass; only the members themselves are invalid. */
+    @Test
+    public void updateCheckFollowsClassRank (@TempDir Path dir)
+    {
+        var store = TestStore.open(dir);
+        var zfc = new ZFC(store);
+
+        store.executeWrite(() -> {
+            var klass = store.createObject(Vocab.Class.R1Class);
+            store.createObject(klass);
+            var update = TestStore.change(store, () ->
+                store.direct().add(klass, Vocab.rank, Util.intLiteral(0)));
+            assertThrows(RdfErr.InvalidObjs.class,
+                () -> zfc.validateUpdate(update));
+        });
+    }
+}
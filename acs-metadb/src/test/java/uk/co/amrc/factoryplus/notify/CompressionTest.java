@@ -0,0 +1,104 @@
+/*
+ * Factory+ service API
+ * notify/v2 compressed frame size tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.notify;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+
+import jakarta.json.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import uk.co.amrc.factoryplus.util.Response;
+
+/* This measures the bytes on the wire for a notify stream with and
+ * without permessage-deflate. It compresses frames as RFC 7692 does,
+ * with a raw deflate stream flushed after each message, rather than
+ * going through Jetty; we want the sizes, not the negotiation. */
+public class CompressionTest {
+
+    /* A SEARCH session over Registration entries: one child update per
+     * object, as a client sees when it first opens the search. */
+    private static List<String> searchStream (int count)
+    {
+        var session = UUID.randomUUID();
+        var owner = UUID.randomUUID();
+        var classes = List.of(UUID.randomUUID(), UUID.randomUUID(),
+            UUID.randomUUID());
+        var rnd = new Random(1);
+
+        var frames = new ArrayList<String>();
+        for (var i = 0; i < count; i++) {
+            var obj = UUID.randomUUID().toString();
+            var body = Json.createObjectBuilder()
+                .add("uuid", obj)
+                .add("class", classes.get(rnd.nextInt(classes.size())).toString())
+                .add("owner", owner.toString())
+                .add("rank", 0)
+                .add("deleted", false)
+                .add("strict", true)
+                .build();
+            var content = Json.createObjectBuilder()
+                .add("child", obj)
+                .add("response", Response.ok(body).toJson())
+                .build();
+            frames.add(NotifyUpdate.ok(false, content).toJsonString(session));
+        }
+        return frames;
+    }
+
+    /* The compressed payload of one frame. The 4-byte sync flush
+     * trailer is not sent on the wire. */
+    private static int deflate (Deflater deflater, byte[] frame)
+    {
+        var out = new ByteArrayOutputStream();
+        var buf = new byte[frame.length + 64];
+        deflater.setInput(frame);
+        int len;
+        do {
+            len = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            out.write(buf, 0, len);
+        } while (len == buf.length);
+        return out.size() - 4;
+    }
+
+    @Test
+    public void compressedFrameSizes ()
+    {
+        var frames = searchStream(500);
+        long plain = 0, alone = 0, takeover = 0;
+
+        var shared = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        for (var frame : frames) {
+            var bytes = frame.getBytes(StandardCharsets.UTF_8);
+            plain += bytes.length;
+            takeover += deflate(shared, bytes);
+
+            var single = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            alone += deflate(single, bytes);
+            single.end();
+        }
+        shared.end();
+
+        System.out.printf(
+            "notify frames: %d bytes plain, %d without context takeover, %d with%n",
+            plain, alone, takeover);
+
+        /* Each frame carries random UUIDs, which limit what a single
+         * frame can save. With context takeover the repeated keys,
+         * classes and owner cost almost nothing. */
+        assertTrue(alone < plain * 0.8);
+        assertTrue(takeover < plain * 0.25);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Factory+ service API
+ * notify/v2 shared subscription tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.notify;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.json.*;
+
+import io.reactivex.rxjava3.core.*;
+import io.reactivex.rxjava3.subjects.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import uk.co.amrc.factoryplus.client.FPServiceClient;
+import uk.co.amrc.factoryplus.http.SendQueue;
+import uk.co.amrc.factoryplus.http.TextWebsocket;
+import uk.co.amrc.factoryplus.providers.AuthProvider;
+import uk.co.amrc.factoryplus.util.Response;
+
+public class NotifyV2Test {
+
+    private static final String WATCH = """
+        { "uuid": "%s", "method": "WATCH",
+          "request": { "method": "GET", "url": "v1/thing" } }
+    """;
+
+    /* A client session connected through an in-memory websocket */
+    private static class Client {
+        Subject<String> recv = PublishSubject.create();
+        List<String> sent = new CopyOnWriteArrayList<>();
+
+        Client (NotifyV2 notify, String token)
+        {
+            var queue = new SendQueue();
+            queue.start(msg -> {
+                    sent.add(msg);
+                    return CompletableFuture.completedFuture(null);
+                },
+                () -> { }, e -> { });
+            new Session(notify).start(TextWebsocket.withQueue(queue, recv));
+            recv.onNext("Bearer " + token);
+        }
+
+        void watch ()
+        {
+            recv.onNext(WATCH.formatted(UUID.randomUUID()));
+        }
+
+        /* The statuses of the updates received, not the auth reply */
+        List<Integer> statuses ()
+        {
+            return sent.stream()
+                .filter(m -> m.startsWith("{"))
+                .<Integer>map(m -> Json.createReader(new StringReader(m))
+                    .readObject().getInt("status"))
+                .toList();
+        }
+    }
+
+    private static void await (java.util.function.BooleanSupplier cond)
+        throws InterruptedException
+    {
+        for (var i = 0; i < 500 && !cond.getAsBoolean(); i++)
+            Thread.sleep(10);
+        assertTrue(cond.getAsBoolean());
+    }
+
+    @Test
+    public void sameUpnSharesUpstream () throws Exception
+    {
+        var auth = new AuthProvider(new FPServiceClient(Map.of()));
+        var token = auth.newSession("user@TEST").token();
+
+        var subscribed = new AtomicInteger();
+        var value = BehaviorSubject.createDefault(
+            Response.<JsonValue>ok(Json.createValue("one")));
+        var notify = NotifyV2.builder(auth)
+            .watch("v1/thing", (sess, args) -> value
+                .doOnSubscribe(d -> subscribed.incrementAndGet()))
+            .build();
+
+        var first = new Client(notify, token);
+        first.watch();
+        await(() -> first.statuses().equals(List.of(201)));
+
+        /* A later session with the same UPN joins the shared sequence
+         * but must still see an initial update. */
+        var second = new Client(notify, token);
+        second.watch();
+        await(() -> second.statuses().equals(List.of(201)));
+
+        value.onNext(Response.ok(Json.createValue("two")));
+        await(() -> first.statuses().equals(List.of(201, 200)));
+        await(() -> second.statuses().equals(List.of(201, 200)));
+
+        assertEquals(1, subscribed.get());
+    }
+}
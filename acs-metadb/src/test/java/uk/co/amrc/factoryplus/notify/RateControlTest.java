@@ -0,0 +1,45 @@
+/*
+ * Factory+ service API
+ * notify/v2 rate control tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.notify;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.schedulers.TestScheduler;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class RateControlTest {
+
+    @Test
+    public void statsCountWhileSubscribed ()
+    {
+        var scheduler = new TestScheduler();
+        var stats = new RateControl.Stats();
+        var rc = new RateControl<Integer>(UUID.randomUUID(),
+            RateControl.DEFAULT_MAX_DELAY, scheduler, stats);
+
+        var input = PublishSubject.<Integer>create();
+        var output = input.compose(rc).test();
+
+        /* The first goes straight out; of the next two only the last
+         * is sent once the delay has passed. The totals are counted
+         * while the subscription is still open. */
+        input.onNext(1);
+        input.onNext(2);
+        input.onNext(3);
+        assertEquals(1, stats.emitted.sum());
+        assertEquals(1, stats.coalesced.sum());
+
+        scheduler.advanceTimeBy(RateControl.MIN_DELAY, TimeUnit.MILLISECONDS);
+        output.assertValues(1, 3);
+        assertEquals(2, stats.emitted.sum());
+    }
+}
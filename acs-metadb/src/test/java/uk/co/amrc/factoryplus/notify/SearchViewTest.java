@@ -0,0 +1,76 @@
+/*
+ * Factory+ service API
+ * notify/v2 SEARCH view tests
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.notify;
+
+import java.util.UUID;
+
+import jakarta.json.*;
+
+import io.reactivex.rxjava3.core.*;
+import io.reactivex.rxjava3.subjects.*;
+
+import io.vavr.collection.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import uk.co.amrc.factoryplus.util.Response;
+
+public class SearchViewTest {
+
+    private static SearchFilter filter ()
+    {
+        var body = Json.createObjectBuilder()
+            .add("uuid", UUID.randomUUID().toString())
+            .add("method", "SEARCH")
+            .add("parent", "v1/thing")
+            .build();
+        return SearchFilter.fromRequest(
+            new Request(UUID.randomUUID(), Request.Method.SEARCH, body));
+    }
+
+    /* As Filter.Search does with a handler's output */
+    private static Observable<SearchUpdate> view (SearchFilter filter,
+        Observable<SearchUpdate> updates)
+    {
+        return updates
+            .scan(SearchView.initial(filter),
+                (st, upd) -> st.view().next(upd))
+            .skip(1)
+            .flatMapIterable(SearchView.Step::updates);
+    }
+
+    /* The handler's full update is ready at once, but its selection
+     * arrives later. The client must never see the unselected child. */
+    @Test
+    public void fullBeforeSelectIsFiltered ()
+    {
+        var ok = Response.<JsonValue>ok(JsonValue.TRUE);
+        var full = SearchUpdate.full(HashMap.of("a", ok, "b", ok));
+        var selections = PublishSubject.<SearchUpdate>create();
+
+        var sent = view(filter(),
+                SearchUpdate.selectedBy(Observable.just(full), selections))
+            .test();
+        sent.assertNoValues();
+
+        selections.onNext(SearchUpdate.select(HashSet.of("a")));
+        sent.assertValueCount(1);
+
+        var first = sent.values().get(0);
+        assertInstanceOf(SearchUpdate.Full.class, first);
+        assertEquals(HashSet.of("a"),
+            ((SearchUpdate.Full)first).children().keySet());
+
+        /* Later selections still apply */
+        selections.onNext(SearchUpdate.select(HashSet.of("a", "b")));
+        sent.assertValueCount(2);
+        var child = (SearchUpdate.Child)sent.values().get(1);
+        assertEquals("b", child.name());
+    }
+}
@@ -6,6 +6,7 @@
 package uk.co.amrc.factoryplus.client;
 
 import java.net.*;
+import java.util.Collection;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -145,10 +146,54 @@ public class FPConfigDB {
      *
      * @param app An Application UUID.
      */
-    /* No implementation of filters yet, we don't have a use case. */
     public Observable<Map<UUID, Object>> searchApp (UUID app)
     {
-        return this.notify.search(List.of("v2", "app", app, "object"));
+        return this.notify.search(appSearch(app));
+    }
+
+    /** Search the entries for an Application with a filter.
+     *
+     * Only entries whose values match the filter, as a JSON Merge
+     * Patch, are included. The filtering is done by the ConfigDB.
+     *
+     * @param app An Application UUID.
+     * @param filter The filter to match values against.
+     */
+    public Observable<Map<UUID, Object>> searchApp (UUID app,
+        java.util.Map<String, Object> filter)
+    {
+        return this.notify.search(appSearch(app).withFilter(filter));
+    }
+
+    /** Search the entries for some objects in an Application.
+     *
+     * @param app An Application UUID.
+     * @param objs The objects to include.
+     */
+    public Observable<Map<UUID, Object>> searchAppObjects (UUID app,
+        Collection<UUID> objs)
+    {
+        return this.notify.search(appSearch(app).withChildren(objs));
+    }
+
+    /** Search the entries for members of a class in an Application.
+     *
+     * Entries are added and removed as objects join and leave the
+     * class.
+     *
+     * @param app An Application UUID.
+     * @param klass A class UUID.
+     */
+    public Observable<Map<UUID, Object>> searchAppClass (UUID app, UUID klass)
+    {
+        return this.notify.search(
+            appSearch(app).withParam("class", klass.toString()));
+    }
+
+    private static FPNotifyRequest.Search appSearch (UUID app)
+    {
+        return FPNotifyRequest.search(
+            UrlPath.joinDir("v2", "app", app, "object"));
     }
 
     /** Watch the members of a class.
@@ -176,6 +221,31 @@ public class FPConfigDB {
         return this.watchSet(List.of("v2", "class", klass, "direct", "subclass"));
     }
 
+    /** Watch the classes an object is a member of.
+     * @param obj An object UUID.
+     */
+    public Observable<Set<UUID>> watchMemberships (UUID obj) {
+        return this.watchSet(List.of("v2", "object", obj, "membership"));
+    }
+    /** Watch the superclasses of a class.
+     * @param klass A class UUID.
+     */
+    public Observable<Set<UUID>> watchSuperclasses (UUID klass) {
+        return this.watchSet(List.of("v2", "object", klass, "superclass"));
+    }
+    /** Watch the classes an object is a direct member of.
+     * @param obj An object UUID.
+     */
+    public Observable<Set<UUID>> watchDirectMemberships (UUID obj) {
+        return this.watchSet(List.of("v2", "object", obj, "direct", "membership"));
+    }
+    /** Watch the direct superclasses of a class.
+     * @param klass A class UUID.
+     */
+    public Observable<Set<UUID>> watchDirectSuperclasses (UUID klass) {
+        return this.watchSet(List.of("v2", "object", klass, "direct", "superclass"));
+    }
+
     /* I haven't implemented the powerset methods yet; we don't have a
      * use for them in Java, and I'm wondering if they would be better
      * served by some form of SEARCH endpoint in any case. */
@@ -6,6 +6,7 @@
 
 package uk.co.amrc.factoryplus.client;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
@@ -33,7 +34,7 @@ public abstract class FPNotifyRequest
 
     public static FPNotifyRequest.Search search (String path)
     {
-        return new Search(path, Optional.empty());
+        return new Search(path, Optional.empty(), Map.of());
     }
 
     static JSONObject close (UUID uuid)
@@ -70,27 +71,53 @@ public abstract class FPNotifyRequest
     {
         private String parent;
         private Optional<Map<String, Object>> filter;
+        private Map<String, Object> params;
 
-        Search (String parent, Optional<Map<String, Object>> filter)
+        Search (String parent, Optional<Map<String, Object>> filter,
+            Map<String, Object> params)
         {
             this.parent = parent;
             this.filter = filter;
+            this.params = params;
         }
 
         public String toString ()
         {
             return "SEARCH " + parent
-                + (filter.isPresent() ? " filter " + filter.toString() : "");
+                + (filter.isPresent() ? " filter " + filter.toString() : "")
+                + (params.isEmpty() ? "" : " " + params.toString());
         }
 
+        /** Select children whose bodies match a JSON Merge Patch. */
         public Search withFilter (Map<String, Object> filter)
         {
-            return new Search(this.parent, Optional.of(filter));
+            return new Search(this.parent, Optional.of(filter), this.params);
+        }
+
+        /** Select only the listed children. */
+        public Search withChildren (Collection<?> children)
+        {
+            return this.withParam("children",
+                children.stream().map(Object::toString).toList());
+        }
+
+        /** Resume a search from a cursor the server gave us. */
+        public Search resumeFrom (String cursor)
+        {
+            return this.withParam("since", cursor);
+        }
+
+        /** Add a service-specific selection key. */
+        public Search withParam (String key, Object value)
+        {
+            var params = new java.util.HashMap<>(this.params);
+            params.put(key, value);
+            return new Search(this.parent, this.filter, Map.copyOf(params));
         }
 
         protected JSONObject toJSON ()
         {
-            var json = new JSONObject()
+            var json = new JSONObject(params)
                 .put("method", "SEARCH")
                 .put("parent", parent);
             if (filter.isPresent())
@@ -9,6 +9,8 @@ package uk.co.amrc.factoryplus.client;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 
 import org.slf4j.Logger;
@@ -106,10 +108,17 @@ public class FPNotifyV2
     }
 
     public Observable<FPNotifyUpdate> request (FPNotifyRequest req)
+    {
+        return this.request(() -> req);
+    }
+
+    /* The request is built afresh each time we (re)connect. */
+    private Observable<FPNotifyUpdate> request (Supplier<FPNotifyRequest> reqs)
     {
         return this.notify
             .switchMap(ws -> {
                 final var uuid = UUID.randomUUID();
+                final var req = reqs.get();
                 return ws.getReceiver()
                     .filter(u -> u.getUUID().equals(uuid))
                     .doOnSubscribe(d -> {
@@ -128,7 +137,7 @@ public class FPNotifyV2
                 var status = u.getStatus();
                 log.info("Notify error: {}", status);
                 return Observable.error(
-                    new FPNotifyException(service, status, req));
+                    new FPNotifyException(service, status, reqs.get()));
             });
     }
 
@@ -152,6 +161,12 @@ public class FPNotifyV2
         handleSearchUpdate (FPNotifyUpdate update)
     {
         var json = update.getContent();
+
+        /* We have resumed after a reconnect; the missed changes will
+         * follow as child updates. */
+        if (json.optBoolean("resumed"))
+            return st -> st;
+
         var child = json.optString("child", null);
         var res = Response.fromJSON(json.getJSONObject("response"));
 
@@ -173,10 +188,21 @@ public class FPNotifyV2
                 .mapValues(Response::fromJSON));
     }
 
+    /* The server may give us a cursor with each update. If we
+     * reconnect we ask to resume from the last cursor we saw, and the
+     * server will send only the changes we missed if it can. */
     public Observable<Response<Map<String, Response<Object>>>> searchFull (
         FPNotifyRequest.Search req)
     {
-        return this.request(req)
+        return Observable.defer(() -> {
+            var cursor = new AtomicReference<String>();
+            return this.request(() -> Optional.ofNullable(cursor.get())
+                    .map(req::resumeFrom)
+                    .orElse(req))
+                .doOnNext(u -> Optional
+                    .ofNullable(u.getContent().optString("seq", null))
+                    .ifPresent(cursor::set));
+        })
             .map(FPNotifyV2::handleSearchUpdate)
             .scan(Response.empty(), 
                 (state, update) -> update.apply(state));
@@ -184,7 +210,12 @@ public class FPNotifyV2
 
     public Observable<Map<UUID, Object>> search (String path)
     {
-        return this.searchFull(FPNotifyRequest.search(path))
+        return this.search(FPNotifyRequest.search(path));
+    }
+
+    public Observable<Map<UUID, Object>> search (FPNotifyRequest.Search req)
+    {
+        return this.searchFull(req)
             .flatMap(res -> res
                 .map(kids -> kids
                     .flatMap((key, kres) -> kres
@@ -47,6 +47,7 @@ import org.apache.hc.core5.util.Timeout;
 import org.eclipse.jetty.websocket.api.Callback;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.util.WSURI;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 
 import org.json.*;
@@ -71,6 +72,7 @@ public class FPHttpClient {
     private RequestCache<URI, String> tokens;
 
     private WebSocketClient ws_client;
+    private boolean ws_deflate;
 
     /** Internal; construct via {@link FPServiceClient}. */
     public FPHttpClient (FPServiceClient fplus)
@@ -93,6 +95,9 @@ public class FPHttpClient {
             .build();
 
         ws_client = new WebSocketClient();
+        ws_deflate = fplus.getOptionalConf("ws_deflate")
+            .map(Boolean::parseBoolean)
+            .orElse(true);
     }
 
     /** Start the async client threads.
@@ -183,7 +188,13 @@ public class FPHttpClient {
             var ws_uri = WSURI.toWebsocket(uri);
             var ep = new TextWebsocket.Endpoint();
 
-            var cf = this.ws_client.connect(ep, ws_uri);
+            /* Offer compression; the server decides whether to use it
+             * and with what parameters. */
+            var req = new ClientUpgradeRequest();
+            if (ws_deflate)
+                req.addExtensions("permessage-deflate");
+
+            var cf = this.ws_client.connect(ep, ws_uri, req);
 
             obs.setDisposable(Disposable.fromFuture(cf));
             cf.whenComplete((ok, err) -> {
@@ -0,0 +1,224 @@
+/*
+ * Factory+ Java service client
+ * Bounded WebSocket send queue
+ * Copyright 2026 University of Sheffield AMRC
+ */
+
+package uk.co.amrc.factoryplus.http;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import io.reactivex.rxjava3.core.Observer;
+import io.reactivex.rxjava3.disposables.Disposable;
+
+/** A bounded queue of outgoing text messages.
+ *
+ * Messages are sent one at a time. Each may carry a conflation key.
+ * When the queued messages exceed the byte budget we drop all but the
+ * latest queued message for each key. Unkeyed messages are never
+ * dropped. If the queue stays over budget for longer than the grace
+ * period the queue fails and the connection should be closed; a client
+ * which is not reading must not be able to exhaust our heap.
+ *
+ * Message sizes are counted in chars rather than encoded bytes.
+ */
+public class SendQueue implements Observer<String>
+{
+    private record Message (Object key, String text) { }
+
+    private final long budget;
+    private final long grace;
+
+    private Deque<Message> queue = new ArrayDeque<>();
+    private long bytes = 0;
+    private long overSince = -1;
+    private long conflated = 0;
+    private boolean sending = false;
+    private boolean completed = false;
+    private boolean failed = false;
+
+    private Function<String, CompletionStage<?>> transport;
+    private Consumer<Throwable> onFail;
+    private Runnable onDone;
+    private AtomicInteger wip = new AtomicInteger();
+
+    /** Create a queue.
+     * @param budget The maximum size of queued messages.
+     * @param grace How long we may stay over budget, in ms.
+     */
+    public SendQueue (long budget, long grace)
+    {
+        this.budget = budget;
+        this.grace = grace;
+    }
+
+    /** An unbounded queue. */
+    public SendQueue ()
+    {
+        this(Long.MAX_VALUE, 0);
+    }
+
+    /** Start sending messages.
+     * @param transport Sends a message, completing when it has gone.
+     * @param onDone Called once the queue has completed and drained.
+     * @param onFail Called if a send fails or the queue overflows.
+     */
+    public void start (Function<String, CompletionStage<?>> transport,
+        Runnable onDone, Consumer<Throwable> onFail)
+    {
+        synchronized (this) {
+            this.transport = transport;
+            this.onDone = onDone;
+            this.onFail = onFail;
+        }
+        drain();
+    }
+
+    /** Stop sending and discard anything queued. */
+    public synchronized void stop ()
+    {
+        transport = null;
+        queue.clear();
+        bytes = 0;
+    }
+
+    public synchronized int depth () { return queue.size(); }
+    public synchronized long bytes () { return bytes; }
+    public synchronized long conflated () { return conflated; }
+
+    public void onSubscribe (Disposable d) { }
+    public void onNext (String text) { send(null, text); }
+    public void onError (Throwable e) { fail(e); }
+
+    public void onComplete ()
+    {
+        synchronized (this) {
+            completed = true;
+        }
+        drain();
+    }
+
+    /** Queue a message.
+     * A message with a non-null key may be dropped in favour of a
+     * later message with an equal key. */
+    public void send (Object key, String text)
+    {
+        Throwable overflow = null;
+        synchronized (this) {
+            if (completed || failed)
+                return;
+            queue.add(new Message(key, text));
+            bytes += text.length();
+            if (bytes > budget)
+                overflow = conflate();
+        }
+        if (overflow != null)
+            fail(overflow);
+        else
+            drain();
+    }
+
+    /* Called with the lock held when we go over budget. Drops
+     * superseded messages, working back from the end of the queue. */
+    private Throwable conflate ()
+    {
+        var seen = new HashSet<Object>();
+        var kept = new ArrayDeque<Message>(queue.size());
+        var it = queue.descendingIterator();
+        while (it.hasNext()) {
+            var msg = it.next();
+            if (msg.key() != null && !seen.add(msg.key())) {
+                bytes -= msg.text().length();
+                conflated++;
+                continue;
+            }
+            kept.addFirst(msg);
+        }
+        queue = kept;
+
+        var now = System.currentTimeMillis();
+        if (bytes <= budget) {
+            overSince = -1;
+            return null;
+        }
+        if (overSince < 0)
+            overSince = now;
+        if (now - overSince < grace)
+            return null;
+        return new IllegalStateException(String.format(
+            "Send queue over budget for %dms (%d bytes, %d messages)",
+            now - overSince, bytes, queue.size()));
+    }
+
+    private void fail (Throwable e)
+    {
+        Consumer<Throwable> cb;
+        synchronized (this) {
+            if (failed)
+                return;
+            failed = true;
+            cb = onFail;
+        }
+        stop();
+        if (cb != null)
+            cb.accept(e);
+    }
+
+    private void sent (Throwable e)
+    {
+        if (e != null) {
+            fail(e);
+            return;
+        }
+        synchronized (this) {
+            sending = false;
+        }
+        drain();
+    }
+
+    /* Only one thread runs the loop; others just tell it to go round
+     * again. This also stops recursion when sends complete at once. */
+    private void drain ()
+    {
+        if (wip.getAndIncrement() != 0)
+            return;
+
+        var missed = 1;
+        do {
+            Message next = null;
+            Function<String, CompletionStage<?>> send = null;
+            Runnable done = null;
+
+            synchronized (this) {
+                if (transport != null && !sending && !failed) {
+                    next = queue.poll();
+                    if (next != null) {
+                        bytes -= next.text().length();
+                        if (bytes <= budget)
+                            overSince = -1;
+                        sending = true;
+                        send = transport;
+                    }
+                    else if (completed) {
+                        done = onDone;
+                        transport = null;
+                    }
+                }
+            }
+
+            if (send != null)
+                send.apply(next.text())
+                    .whenComplete((v, e) -> sent(e));
+            if (done != null)
+                done.run();
+
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
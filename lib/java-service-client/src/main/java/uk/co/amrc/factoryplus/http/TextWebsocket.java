@@ -13,31 +13,48 @@ import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.StatusCode;
 
 import io.reactivex.rxjava3.core.*;
-import io.reactivex.rxjava3.disposables.SerialDisposable;
-import io.reactivex.rxjava3.subjects.*;
-import io.reactivex.rxjava3.observers.*;
 
 import uk.co.amrc.factoryplus.util.Duplex;
 
 public class TextWebsocket 
     extends Duplex.Base<String, String>
 {
+    private SendQueue sendQueue;
+
     public TextWebsocket (Observer<String> send, Observable<String> recv)
     {
         super(send, recv);
     }
 
+    /** Create a duplex whose sending side is a SendQueue.
+     * This is a named factory rather than a constructor overload so
+     * that TextWebsocket::new stays unambiguous. */
+    public static TextWebsocket withQueue (SendQueue send, Observable<String> recv)
+    {
+        var ws = new TextWebsocket(send, recv);
+        ws.sendQueue = send;
+        return ws;
+    }
+
+    /** The sending side, which accepts conflation keys. This is null
+     * if we were not built from a SendQueue. */
+    public SendQueue getSendQueue () { return sendQueue; }
+
     public static class Endpoint implements Session.Listener.AutoDemanding
     {
-        private Subject<String> send;
+        private SendQueue send;
         private ObservableEmitter<String> recv;
         private TextWebsocket duplex;
-        private SerialDisposable sub;
 
         public Endpoint ()
         {
-            this.send = UnicastSubject.<String>create();
-            this.sub = new SerialDisposable();
+            this(new SendQueue());
+        }
+
+        /** Create an endpoint with a bounded send queue. */
+        public Endpoint (SendQueue send)
+        {
+            this.send = send;
 
             /* It seems silly to create a cold Observable just in order
              * to convert it to a hot Observable, but RxJava doesn't
@@ -47,26 +64,28 @@ public class TextWebsocket
                 .publish();
             cobs.connect();
 
-            this.duplex = new TextWebsocket(send, cobs);
+            this.duplex = TextWebsocket.withQueue(send, cobs);
         }
 
         public TextWebsocket getDuplex () { return duplex; }
 
         public void onWebSocketOpen (Session sess) {
             sess.addIdleTimeoutListener(e -> false);
-            sub.set(send
-                .concatMapCompletable(msg -> {
+            send.start(
+                msg -> {
                     var cf = new Callback.Completable();
                     sess.sendText(msg, cf);
-                    return Completable.fromCompletionStage(cf);
-                })
-                .doFinally(() -> sess.close())
-                .subscribe(() -> {}, e -> recv.tryOnError(e)));
-
+                    return cf;
+                },
+                () -> sess.close(),
+                e -> {
+                    recv.tryOnError(e);
+                    sess.close(StatusCode.POLICY_VIOLATION, e.getMessage(), Callback.NOOP);
+                });
         }
 
         public void onWebSocketClose (int sc, String r, Callback done) {
-            sub.dispose();
+            send.stop();
             recv.onComplete();
             done.succeed();
         }
@@ -0,0 +1,102 @@
+/* Factory+ Java client library.
+ * WebSocket send queue tests.
+ * Copyright 2026 University of Sheffield
+ */
+
+package uk.co.amrc.factoryplus.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class SendQueueTest {
+
+    /* A transport which records what it sends and only completes
+     * sends when told to. */
+    private static class Transport {
+        List<String> sent = new ArrayList<>();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        boolean done = false;
+
+        CompletableFuture<Void> send (String msg)
+        {
+            sent.add(msg);
+            var cf = new CompletableFuture<Void>();
+            pending.add(cf);
+            return cf;
+        }
+
+        void start (SendQueue queue)
+        {
+            queue.start(this::send, () -> done = true, failures::add);
+        }
+
+        /* Completing a send may start the next one */
+        void completeAll ()
+        {
+            for (var i = 0; i < pending.size(); i++)
+                pending.get(i).complete(null);
+        }
+    }
+
+    @Test
+    public void sendsInOrderAndCompletes ()
+    {
+        var queue = new SendQueue();
+        var tr = new Transport();
+
+        queue.onNext("one");
+        tr.start(queue);
+        queue.onNext("two");
+        queue.onComplete();
+        assertFalse(tr.done);
+
+        tr.completeAll();
+        assertEquals(List.of("one", "two"), tr.sent);
+        assertTrue(tr.done);
+    }
+
+    @Test
+    public void conflatesKeyedMessagesOverBudget ()
+    {
+        var queue = new SendQueue(20, 60000);
+        var tr = new Transport();
+        tr.start(queue);
+
+        /* The first is sent at once; the rest queue behind it. */
+        for (var i = 0; i < 5; i++) {
+            queue.send("a", "a" + i + "....");
+            queue.send("b", "b" + i + "....");
+        }
+        queue.send(null, "unkeyed");
+
+        assertTrue(queue.bytes() <= 20 + "unkeyed".length());
+        assertTrue(queue.conflated() > 0);
+        assertTrue(tr.failures.isEmpty());
+
+        tr.completeAll();
+        assertEquals("a0....", tr.sent.get(0));
+        assertTrue(tr.sent.contains("a4...."));
+        assertTrue(tr.sent.contains("b4...."));
+        assertEquals("unkeyed", tr.sent.get(tr.sent.size() - 1));
+    }
+
+    @Test
+    public void failsWhenStuckOverBudget ()
+    {
+        var queue = new SendQueue(10, 0);
+        var tr = new Transport();
+        tr.start(queue);
+
+        for (var i = 0; i < 5; i++)
+            queue.send(null, "message" + i);
+
+        assertEquals(1, tr.failures.size());
+        assertEquals(0, queue.depth());
+    }
+}